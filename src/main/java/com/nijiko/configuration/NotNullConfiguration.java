@@ -1,11 +1,22 @@
 package com.nijiko.configuration;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.bukkit.util.config.Configuration;
@@ -34,6 +45,14 @@ import org.yaml.snakeyaml.representer.Representer;
 public class NotNullConfiguration extends Configuration {
     private Yaml yaml;
     private File file;
+
+    // What the last save wrote, so that saving again without changes can be skipped.
+    private final Object writeLock = new Object();
+    private byte[] persisted = null;
+    private long persistedLength = -1;
+    private long persistedModified = -1;
+    private long taken = 0;
+    private long written = 0;
     
     public NotNullConfiguration(File file) {
         super(file);
@@ -51,41 +70,130 @@ public class NotNullConfiguration extends Configuration {
      */
     @Override
     public void load() {        
-        FileInputStream stream = null;
+        byte[] data = null;
+        long length = file.length();
+        long modified = file.lastModified();
 
         try {
-            stream = new FileInputStream(file);
-            nullRead(yaml.load(new UnicodeReader(stream)));
+            data = Files.readAllBytes(file.toPath());
+            nullRead(yaml.load(new UnicodeReader(new ByteArrayInputStream(data))));
         } catch (IOException e) {
             root = new HashMap<String, Object>();
         } catch (ConfigurationException e) {
             root = new HashMap<String, Object>();
-        } finally {
-            try {
-                if (stream != null) {
-                    stream.close();
-                }
-            } catch (IOException e) {
-            }
+        }
+
+        // Seeded from the file as read, so saving before any edit skips a file that already holds the same YAML.
+        synchronized (writeLock) {
+            persisted = (data != null) ? digest(data) : null;
+            persistedLength = length;
+            persistedModified = modified;
         }
     }
     /**
-     * {@inheritDoc}
+     * Saves the configuration.
+     *
+     * @return boolean, true if the file holds the configuration.
      */
     @Override
     public boolean save() {
-        FileOutputStream stream = null;
+        Snapshot snapshot;
+
+        synchronized (writeLock) {
+            snapshot = new Snapshot(root, ++taken);
+        }
+
+        return save(snapshot);
+    }
 
+    /**
+     * Copies the configuration as it is now, so that it can be saved on
+     * another thread while it keeps being edited. Take the snapshot where
+     * edits are excluded, e.g. under the lock the edits hold.
+     *
+     * @return Snapshot
+     */
+    @SuppressWarnings("unchecked")
+    public Snapshot snapshot() {
+        Map<String, Object> copy = (Map<String, Object>) copy(root);
+
+        synchronized (writeLock) {
+            return new Snapshot(copy, ++taken);
+        }
+    }
+
+    /**
+     * Saves a snapshot. A snapshot older than one already saved is skipped,
+     * so saves finishing out of order never bring back older data.
+     * <br /><br />
+     * The YAML is serialized in memory first. When it matches what the last
+     * save wrote and the file was not touched since, nothing is written.
+     * Otherwise it goes to a temporary file, which is synced to disk and
+     * renamed over the file, so a crash never leaves a half written file.
+     *
+     * @return boolean, true if the file holds the configuration.
+     */
+    public boolean save(Snapshot snapshot) {
+        synchronized (writeLock) {
+            if (snapshot.sequence <= written) {
+                return true;
+            }
+
+            if (write(snapshot.root)) {
+                written = snapshot.sequence;
+                return true;
+            }
+
+            return false;
+        }
+    }
+
+    private boolean write(Map<String, Object> root) {
         File parent = file.getParentFile();
         if (parent != null) {
             parent.mkdirs();
         }
 
+        byte[] data;
+        byte[] digest;
+
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            Writer writer = new OutputStreamWriter(buffer, "UTF-8");
+            yaml.dump(root, writer);
+            writer.flush();
+
+            data = buffer.toByteArray();
+            digest = digest(data);
+        } catch (IOException e) {
+            return false;
+        }
+
+        if (digest != null && Arrays.equals(digest, persisted) && file.length() == persistedLength && file.lastModified() == persistedModified) {
+            return true;
+        }
+
+        File temp = new File(parent, file.getName() + ".tmp");
+        FileOutputStream stream = null;
+
         try {
-            stream = new FileOutputStream(file);
-            yaml.dump(root, new OutputStreamWriter(stream, "UTF-8"));
+            stream = new FileOutputStream(temp);
+            stream.write(data);
+            stream.getFD().sync();
+            stream.close();
+            stream = null;
+
+            if (!replace(temp, file)) {
+                temp.delete();
+                return false;
+            }
+
+            persisted = digest;
+            persistedLength = file.length();
+            persistedModified = file.lastModified();
             return true;
         } catch (IOException e) {
+            temp.delete();
         } finally {
             try {
                 if (stream != null) {
@@ -97,7 +205,72 @@ public class NotNullConfiguration extends Configuration {
 
         return false;
     }
-    
+
+    private static byte[] digest(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-1, without it every save simply writes.
+            return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object copy(Object value) {
+        if (value instanceof Map) {
+            Map<Object, Object> copy = new LinkedHashMap<Object, Object>();
+
+            for (Map.Entry<Object, Object> entry : ((Map<Object, Object>) value).entrySet()) {
+                copy.put(entry.getKey(), copy(entry.getValue()));
+            }
+
+            return copy;
+        }
+
+        if (value instanceof List) {
+            List<Object> copy = new ArrayList<Object>();
+
+            for (Object item : (List<Object>) value) {
+                copy.add(copy(item));
+            }
+
+            return copy;
+        }
+
+        return value;
+    }
+
+    /**
+     * Moves a file over another in one step, so the target always exists
+     * with either its old or its new contents.
+     */
+    private static boolean replace(File source, File target) {
+        try {
+            try {
+                Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The configuration as it was at one point, see snapshot().
+     */
+    public static final class Snapshot {
+        private final Map<String, Object> root;
+        private final long sequence;
+
+        private Snapshot(Map<String, Object> root, long sequence) {
+            this.root = root;
+            this.sequence = sequence;
+        }
+    }
+
     @SuppressWarnings("unchecked")
     private void nullRead(Object input) throws ConfigurationException {
         try {
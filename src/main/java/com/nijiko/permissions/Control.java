@@ -1,8 +1,11 @@
 package com.nijiko.permissions;
 
 
-import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -10,14 +13,20 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.bukkit.entity.Player;
 import org.bukkit.util.config.Configuration;
 
 import com.nijiko.Messaging;
-import com.nijiko.configuration.NotNullConfiguration;
-import com.nijikokun.bukkit.Permissions.FileManager;
 import com.nijikokun.bukkit.Permissions.Permissions;
 
 /**
@@ -49,191 +58,748 @@ public class Control extends PermissionHandler {
 
     public static final Logger log = Logger.getLogger("Minecraft");
 
-    private List<String> Worlds = new LinkedList<String>();
-    private Map<String, Configuration> WorldConfiguration = new HashMap<String, Configuration>();
-    private Set<String> WorldConfigurationModification = new HashSet<String>();
-    private Map<String, String> WorldBase = new HashMap<String, String>();
-    private Map<String, String> WorldInheritance = new HashMap<String, String>();
-    private Map<String, Map<String, Set<String>>> WorldUserPermissions = new HashMap<String, Map<String, Set<String>>>();
-    private Map<String, Map<String, String>> WorldUserGroups = new HashMap<String, Map<String, String>>();
-    private Map<String, Map<String, Set<String>>> WorldGroups = new HashMap<String, Map<String, Set<String>>>();
-    private Map<String, Map<String, Object[]>> WorldGroupsData = new HashMap<String, Map<String, Object[]>>();
-    private Map<String, Map<String, Set<String>>> WorldGroupsInheritance = new HashMap<String, Map<String, Set<String>>>();
-    private Map<String, Map<String, Boolean>> WorldCache = new HashMap<String, Map<String, Boolean>>();
-
-    private String defaultWorld = "";
-    private Configuration config;
+    private Map<String, WorldModel> Models = new ConcurrentHashMap<String, WorldModel>();
+    private Map<String, String> Targets = new ConcurrentHashMap<String, String>();
+    private volatile int targetsGeneration = 0;
+    private Persister persister = new Persister(this);
+    private WorldWatcher watcher = null;
+    private ConcurrentMap<String, Object> WorldLocks = new ConcurrentHashMap<String, Object>();
+    private Map<String, PermissionSubject> Subjects = new ConcurrentHashMap<String, PermissionSubject>();
+    private NameTable PlayerIds = new NameTable(true);
+    private NameTable NodeIds = new NameTable(false);
+
+    private volatile String defaultWorld = "";
+    private volatile int cacheSize = 10000;
+    private volatile long userIdle = 600000L;
+    private volatile boolean preload = false;
+    private final PermissionStorage storage;
 
     
+    /**
+     * @param config - Not read, every world comes from the world files.
+     */
     public Control(Configuration config) {
-        this.config = config;
+        this(new YamlStorage(Permissions.instance.getDataFolder()));
     }
 
-    public void reload() {
-        this.clearAllCache();
-        
-        final List<String> w = new LinkedList<String>(Worlds);
-        Worlds = new LinkedList<String>();
-        
-        synchronized (w) {
-        	for (String world : w) {
-        		this.forceLoadWorld(world);
-        	}
+    /**
+     * @param storage - Where worlds are read from and saved to.
+     */
+    public Control(PermissionStorage storage) {
+        this.storage = storage;
+
+        Runnable reclaimer = new Runnable() {
+            public void run() {
+                reclaimNames();
+            }
+        };
+
+        this.PlayerIds.setReclaimer(reclaimer);
+        this.NodeIds.setReclaimer(reclaimer);
+    }
+
+    /**
+     * Drops the player names and nodes no cached decision, subject or
+     * compiled node uses any more, see {@link NameTable}.
+     */
+    private void reclaimNames() {
+        int players = this.PlayerIds.mark();
+        int nodes = this.NodeIds.mark();
+        Set<Integer> UsedPlayers = new HashSet<Integer>();
+        Set<Integer> UsedNodes = new HashSet<Integer>();
+
+        for (PermissionSubject subject : this.Subjects.values()) {
+            UsedPlayers.add(subject.player);
+        }
+
+        for (WorldModel model : this.Models.values()) {
+            model.getCache().collectIds(UsedPlayers, UsedNodes);
+        }
+
+        this.PlayerIds.retain(UsedPlayers, players);
+        this.NodeIds.retain(UsedNodes, nodes);
+
+        // Checks racing the scan may have cached decisions under ids dropped since, nothing can look those up again.
+        for (WorldModel model : this.Models.values()) {
+            model.getCache().invalidate(new DecisionCache.Filter() {
+                public boolean matches(int player, int permission) {
+                    return PlayerIds.getName(player) == null || NodeIds.getName(permission) == null;
+                }
+            });
         }
     }
+
+    /**
+     * Grabs the lock that serializes loading and editing a world.
+     * Permission checks never take it once the world is loaded.
+     *
+     * @param world
+     * @return Object
+     */
+    private Object lockFor(String world) {
+        Object lock = this.WorldLocks.get(world);
+
+        if (lock == null) {
+            Object created = new Object();
+            lock = this.WorldLocks.putIfAbsent(world, created);
+
+            if (lock == null) {
+                lock = created;
+            }
+        }
+
+        return lock;
+    }
+
+    /**
+     * Reloads every loaded world in parallel. Each world keeps answering
+     * from its previous data until every world's new data is complete.
+     */
+    public void reload() {
+        this.loadInParallel(new ArrayList<String>(this.Models.keySet()), true);
+    }
     
     public boolean reload(String world) {
-    	if (this.Worlds.contains(world)) {
-    		this.clearCache(world);
-    		
-    		synchronized (Worlds) {
-    			this.Worlds.remove(world);
-    		}
-    		
+    	if (this.Models.containsKey(world.toLowerCase())) {
     		this.forceLoadWorld(world);
     		return true;
     	}
     	return false;
     }
     
+    public boolean reloadUser(String world, String user) {
+        return this.reloadEntry(world, "users", user);
+    }
+
+    public boolean reloadGroup(String world, String group) {
+        return this.reloadEntry(world, "groups", group);
+    }
+
+    /**
+     * Reads one user or group from the storage again, leaving the rest of
+     * the loaded world as it is. A world that copies another reloads the
+     * entry of the world it copies. Which group is the default is kept, a
+     * change to that needs a full reload.
+     *
+     * @param world
+     * @param section - "users" or "groups".
+     * @param name
+     * @return boolean, false if the world is not loaded.
+     */
+    private boolean reloadEntry(String world, String section, String name) {
+        world = world.toLowerCase();
+
+        if (!this.Models.containsKey(world)) {
+            return false;
+        }
+
+        // A world copying another reloads the entry where its data lives.
+        world = this.resolveWorld(world);
+
+        // The stored data is read without the lock.
+        Configuration fresh;
+
+        try {
+            fresh = section.equals("users") ? this.storage.fetchUser(world, name) : this.storage.fetch(world);
+        } catch (IOException e) {
+            log.severe("[Permissions] Could not read " + name + " of " + world + ": " + e.getMessage());
+            return true;
+        }
+
+        String key = findKey(fresh, section, name);
+        String lower = name.toLowerCase();
+        String path = section + "." + key;
+
+        synchronized (this.lockFor(world)) {
+            WorldModel live = this.Models.get(world);
+
+            if (live == null) {
+                return false;
+            }
+
+            Configuration config = live.getConfig();
+            String liveKey = findKey(config, section, name);
+
+            if (liveKey != null) {
+                config.removeProperty(section + "." + liveKey);
+            }
+
+            if (key != null) {
+                config.setProperty(path, fresh.getProperty(path));
+            }
+
+            NodeDictionary Nodes = live.getNodes();
+            UserTable Users = live.getUsers();
+            Map<String, NodeSet> Groups = live.getGroups();
+            Map<String, Object[]> GroupsData = live.getGroupsData();
+            Map<String, Set<String>> GroupsInheritance = live.getGroupsInheritance();
+
+            if (section.equals("users")) {
+                Users = Users.without(lower);
+
+                if (key != null) {
+                    List<String> permissions = fresh.getStringList(path + ".permissions", null);
+                    String group = fresh.getString(path + ".group");
+
+                    Nodes = Nodes.withAll(permissions);
+                    Users = Users.with(lower, Nodes.compile(permissions), (group == null) ? live.getBase() : (group.isEmpty() ? null : group));
+                } else {
+                    Users = Users.missing(lower);
+                }
+            } else {
+                Groups = new HashMap<String, NodeSet>(Groups);
+                GroupsData = new HashMap<String, Object[]>(GroupsData);
+                GroupsInheritance = new HashMap<String, Set<String>>(GroupsInheritance);
+                Groups.remove(lower);
+                GroupsData.remove(lower);
+                GroupsInheritance.remove(lower);
+
+                if (key != null) {
+                    List<String> permissions = fresh.getStringList(path + ".permissions", null);
+                    List<String> inheritance = fresh.getStringList(path + ".inheritance", null);
+
+                    Nodes = Nodes.withAll(permissions);
+                    Groups.put(lower, Nodes.compile(permissions));
+                    GroupsData.put(lower, new Object[]{key, fresh.getString(path + ".info.prefix", null),
+                            fresh.getString(path + ".info.suffix", null), fresh.getBoolean(path + ".info.build", false)});
+
+                    if (inheritance.size() > 0) {
+                        GroupsInheritance.put(lower, new HashSet<String>(inheritance));
+                    }
+                }
+            }
+
+            this.swap(world, new WorldModel(world, live.getSource(), live.getCopies(), live.getBase(), Nodes, Users,
+                    Groups, GroupsData, GroupsInheritance, live.getCache()));
+        }
+
+        return true;
+    }
+
+    /**
+     * Grabs a user or group key as it is spelled in a configuration.
+     *
+     * @return String, null if there is no such entry.
+     */
+    private static String findKey(Configuration config, String section, String name) {
+        List<String> keys = config.getKeys(section);
+
+        if (keys != null) {
+            for (String key : keys) {
+                if (key.equalsIgnoreCase(name)) {
+                    return key;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Grabs the model of a world, first reading a user into it when the
+     * storage reads users on demand and they were not looked up yet.
+     *
+     * @param world - Resolved world name.
+     * @param name - Lowercased user name.
+     * @return WorldModel
+     */
+    private WorldModel model(String world, String name) {
+        WorldModel model = this.Models.get(world);
+
+        if (model == null || model.getUsers().knows(name)) {
+            return model;
+        }
+
+        // The stored data is read without the lock.
+        Configuration fresh;
+
+        try {
+            fresh = this.storage.fetchUser(world, name);
+        } catch (IOException e) {
+            log.severe("[Permissions] Could not read " + name + " of " + world + ": " + e.getMessage());
+            return model;
+        }
+
+        String key = findKey(fresh, "users", name);
+
+        synchronized (this.lockFor(world)) {
+            WorldModel live = this.Models.get(world);
+
+            // An edit or another check may have read the user meanwhile.
+            if (live == null || live.getUsers().knows(name)) {
+                return live;
+            }
+
+            if (key == null) {
+                live = live.withUsers(live.getNodes(), live.getUsers().missing(name));
+            } else {
+                String path = "users." + key;
+                List<String> permissions = fresh.getStringList(path + ".permissions", null);
+                String group = fresh.getString(path + ".group");
+                Object info = fresh.getProperty(path + ".info");
+                NodeDictionary Nodes = live.getNodes().withAll(permissions);
+
+                if (info != null) {
+                    live.getConfig().setProperty(path + ".info", info);
+                }
+
+                live = live.withUsers(Nodes, live.getUsers().with(name, Nodes.compile(permissions),
+                        (group == null) ? live.getBase() : (group.isEmpty() ? null : group)));
+            }
+
+            this.Models.put(world, live);
+            return live;
+        }
+    }
+
     public void setDefaultWorld(String world) {
         this.defaultWorld = world;
     }
 
     public boolean loadWorld(String world) {
-        if(!this.Worlds.contains(world)) {
-            this.load(world, new NotNullConfiguration(new File(Permissions.instance.getDataFolder().getPath() + File.separator + world + ".yml")));
+        world = world.toLowerCase();
+
+        if(!this.Models.containsKey(world)) {
+            synchronized (this.lockFor(world)) {
+                if (this.Models.containsKey(world)) {
+                    return false;
+                }
+
+                this.publish(world, this.readWorld(world));
+            }
+
             log.info("Loaded world: " + world);
-           return true;
+            return true;
         }
 
         return false;
     }
     
+    public void loadWorlds(Collection<String> worlds) {
+        this.loadInParallel(worlds, false);
+    }
+
+    /**
+     * Reads worlds on a pool sized to the core count, then publishes them
+     * all at once.
+     * <br /><br />
+     * Worlds are read in waves: once a wave is done, the copies: targets it
+     * names that are neither loaded nor read yet make up the next wave. The
+     * models are then published targets first, so a world copying another
+     * never resolves to a world that is not there yet.
+     *
+     * @param worlds
+     * @param force - Read worlds that are already loaded again.
+     */
+    private void loadInParallel(Collection<String> worlds, boolean force) {
+        Map<String, WorldModel> Built = new HashMap<String, WorldModel>();
+        Set<String> wave = new HashSet<String>();
+
+        for (String world : worlds) {
+            if (force || !this.checkWorld(world)) {
+                wave.add(world.toLowerCase());
+            }
+        }
+
+        if (wave.isEmpty()) {
+            return;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(wave.size(), Runtime.getRuntime().availableProcessors()));
+
+        try {
+            while (!wave.isEmpty()) {
+                Map<String, Future<WorldModel>> results = new HashMap<String, Future<WorldModel>>();
+
+                for (final String world : wave) {
+                    results.put(world, pool.submit(new Callable<WorldModel>() {
+                        public WorldModel call() {
+                            return readWorld(world);
+                        }
+                    }));
+                }
+
+                Set<String> next = new HashSet<String>();
+
+                for (Map.Entry<String, Future<WorldModel>> result : results.entrySet()) {
+                    WorldModel model;
+
+                    try {
+                        model = result.getValue().get();
+                    } catch (ExecutionException e) {
+                        log.log(Level.SEVERE, "[Permissions] Could not load world " + result.getKey() + ".", e.getCause());
+                        continue;
+                    }
+
+                    Built.put(result.getKey(), model);
+
+                    String copies = model.getCopies();
+
+                    if (copies != null && !copies.isEmpty() && !result.getKey().equalsIgnoreCase(this.defaultWorld)) {
+                        copies = copies.toLowerCase();
+
+                        if (!Built.containsKey(copies) && !results.containsKey(copies) && !this.checkWorld(copies)) {
+                            next.add(copies);
+                        }
+                    }
+                }
+
+                wave = next;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } finally {
+            pool.shutdown();
+        }
+
+        List<String> order = new ArrayList<String>();
+        Set<String> visited = new HashSet<String>();
+
+        for (String world : Built.keySet()) {
+            this.order(world, Built, visited, order);
+        }
+
+        for (String world : order) {
+            synchronized (this.lockFor(world)) {
+                this.swap(world, Built.get(world));
+            }
+
+            log.info("Loaded world: " + world);
+        }
+
+        this.targetsGeneration++;
+        this.Targets.clear();
+    }
+
+    /**
+     * Adds a world to the publish order after the world it copies.
+     */
+    private void order(String world, Map<String, WorldModel> Built, Set<String> visited, List<String> order) {
+        if (!visited.add(world)) {
+            return;
+        }
+
+        String copies = Built.get(world).getCopies();
+
+        if (copies != null && Built.containsKey(copies.toLowerCase()) && !world.equalsIgnoreCase(this.defaultWorld)) {
+            this.order(copies.toLowerCase(), Built, visited, order);
+        }
+
+        order.add(world);
+    }
+
+    public void preload() {
+        if (!this.preload) {
+            return;
+        }
+
+        List<String> worlds = this.storage.getWorlds();
+        long start = System.nanoTime();
+        this.loadWorlds(worlds);
+        log.info("[Permissions] Preloaded " + worlds.size() + " world files in " + ((System.nanoTime() - start) / 1000000L) + " ms.");
+    }
+
     public void forceLoadWorld(String world) {
-        this.load(world, new NotNullConfiguration(new File(Permissions.instance.getDataFolder().getPath() + File.separator + world + ".yml")));
+        world = world.toLowerCase();
+
+        synchronized (this.lockFor(world)) {
+            this.publish(world, this.readWorld(world));
+        }
     }
 
     public boolean checkWorld(String world) {
-        if(this.Worlds.contains(world)) {
+        if(this.Models.containsKey(world.toLowerCase())) {
             return true;
         } else {
             return false;
         }
     }
 
+    /**
+     * Grabs the loaded world whose data answers for a world name, in any case.
+     * <br /><br />
+     * The first time a name is asked for, its world is loaded and its
+     * copies: chain followed, loading every world on the way. A chain that
+     * comes back on itself is reported and the world keeps its own data.
+     * The answer is remembered until the next load, so later calls cost a
+     * single lookup.
+     *
+     * @param world
+     * @return String, lowercased name of the world whose data answers for it.
+     */
+    private String resolveWorld(String world) {
+        String target = this.Targets.get(world);
+
+        if (target != null) {
+            return target;
+        }
+
+        int generation = this.targetsGeneration;
+        List<String> chain = new ArrayList<String>();
+        String current = world.toLowerCase();
+
+        this.loadWorld(current);
+        chain.add(current);
+
+        while (!current.equalsIgnoreCase(this.defaultWorld)) {
+            String copies = this.Models.get(current).getCopies();
+
+            if (copies == null || copies.isEmpty()) {
+                break;
+            }
+
+            String next = copies.toLowerCase();
+
+            if (chain.contains(next)) {
+                log.severe("[Permissions] World copies form a cycle: " + chain + " -> " + next + ". Ignoring copies of " + chain.get(0) + ".");
+                current = chain.get(0);
+                break;
+            }
+
+            this.loadWorld(next);
+            chain.add(next);
+            current = next;
+        }
+
+        this.Targets.put(world, current);
+
+        // A load that ran meanwhile may have changed the chain, leave it to the next call.
+        if (generation != this.targetsGeneration) {
+            this.Targets.remove(world);
+        }
+
+        return current;
+    }
+
     public void load() {
         if(this.defaultWorld == null || this.defaultWorld.equals("")) {
             return;
         }
 
-        this.load(this.defaultWorld, this.config);
+        String world = this.defaultWorld.toLowerCase();
+
+        synchronized (this.lockFor(world)) {
+            this.publish(world, this.readWorld(world));
+        }
     }
 
-    @SuppressWarnings("unused")
-	public void load(String world, Configuration config) {
-        if (!(new File(Permissions.instance.getDataFolder().getPath() + File.separator + world + ".yml").exists())) {
-            FileManager file = new FileManager(Permissions.instance.getDataFolder().getPath() + File.separator, world + ".yml", true);
+    /**
+     * Loads a world from a configuration given by the caller, which is read
+     * in full rather than read from the storage.
+     *
+     * @param world
+     * @param config
+     */
+    public void load(String world, Configuration config) {
+        world = world.toLowerCase();
+
+        synchronized (this.lockFor(world)) {
+            this.publish(world, this.loadConfiguration(world, config));
         }
+    }
+
+    /**
+     * Swaps in the model of a world. Callers hold the world's lock.
+     */
+    private void publish(String world, WorldModel model) {
+        this.swap(world, model);
+        this.targetsGeneration++;
+        this.Targets.clear();
+    }
 
+    /**
+     * Replaces the model of a world, keeping the cached decisions that the
+     * new data does not change. Callers hold the world's lock.
+     */
+    private void swap(String world, WorldModel model) {
+        WorldModel live = this.Models.get(world);
 
-        config.load();
+        if (live == null || live.getCache().getLimit() != model.getCache().getLimit()
+                || (live.getCopies() == null ? model.getCopies() != null : !live.getCopies().equalsIgnoreCase(model.getCopies()))) {
+            this.Models.put(world, model);
+            return;
+        }
 
-        this.Worlds.add(world);
-        this.WorldConfiguration.put(world, config);
+        WorldDiff diff = WorldDiff.of(live, model);
+        this.Models.put(world, model.withCache(live.getCache()));
 
-        if(!world.equals(this.defaultWorld)) {
-            if(!config.getString("plugin.permissions.copies", "").isEmpty()) {
-                this.WorldInheritance.put(world, config.getString("plugin.permissions.copies", ""));
-                return;
-            }
-            
-            if (!(new File(Permissions.instance.getDataFolder().getPath() + File.separator + world + ".yml").exists())) {
-            	this.WorldInheritance.put(world, defaultWorld);
+        if (!diff.isEmpty()) {
+            live.getCache().invalidate(diff.filter(this.PlayerIds, this.NodeIds));
+        }
+    }
+
+    /**
+     * Applies the plugin settings of the default world's file. Settings that
+     * are missing or of the wrong type keep their current value.
+     *
+     * @param settings - Setting under plugin.permissions to its value.
+     */
+    private void configure(Map<String, Object> settings) {
+        Integer size = toInteger(settings.get("cache.size"));
+        Object preload = settings.get("preload");
+
+        if (size != null) {
+            this.cacheSize = size;
+        }
+
+        if (preload instanceof Boolean) {
+            this.preload = (Boolean) preload;
+        }
+
+        Integer names = toInteger(settings.get("names.limit"));
+
+        if (names != null) {
+            this.PlayerIds.setLimit(names);
+            this.NodeIds.setLimit(names);
+        }
+
+        Integer idle = toInteger(settings.get("users.idle"));
+
+        if (idle != null) {
+            this.userIdle = Math.max(0, idle) * 1000L;
+        }
+
+        Integer delay = toInteger(settings.get("autosave.delay"));
+        Integer interval = toInteger(settings.get("autosave.interval"));
+
+        this.persister.setTimings(((delay != null) ? delay : 5) * 1000L, ((interval != null) ? interval : 60) * 1000L);
+        this.storage.configure(settings);
+
+        Integer watchDelay = toInteger(settings.get("watch.delay"));
+        this.watch(Boolean.TRUE.equals(settings.get("watch.enabled")), ((watchDelay != null) ? watchDelay : 2) * 1000L);
+    }
+
+    /**
+     * Starts or stops reloading world files edited outside of the server.
+     * Only world files can be watched, other storages ignore this.
+     *
+     * @param enabled
+     * @param delay - Milliseconds a file has to be quiet before it is reloaded.
+     */
+    private synchronized void watch(boolean enabled, long delay) {
+        if (!enabled || !(this.storage instanceof YamlStorage)) {
+            if (this.watcher != null) {
+                this.watcher.stop();
+                this.watcher = null;
             }
-            
-        }
-
-        this.WorldBase.put(world, "");
-        this.WorldCache.put(world, new HashMap<String, Boolean>());
-        this.WorldUserPermissions.put(world, new HashMap<String, Set<String>>());
-        this.WorldUserGroups.put(world, new HashMap<String, String>());
-        this.WorldGroups.put(world, new HashMap<String, Set<String>>());
-        this.WorldGroupsData.put(world, new HashMap<String, Object[]>());
-        this.WorldGroupsInheritance.put(world, new HashMap<String, Set<String>>());
-
-        // Grab the keys we are going to need
-        List<String> userKeys = config.getKeys("users");
-        List<String> groupKeys = config.getKeys("groups");
-
-        // Permission set.
-        Set<String> Permissions = new HashSet<String>();
-        Set<String> Inheritance = new HashSet<String>();
-
-        // Permission list
-        List<String> permissions;
-        List<String> inheritance;
-
-        // Group
-        String group;
-
-        if (groupKeys != null) {
-            for (String key : groupKeys) {
-                Inheritance = new HashSet<String>();
-                Permissions = new HashSet<String>();
-
-                // Configuration
-                inheritance = config.getStringList("groups." + key + ".inheritance", null);
-                permissions = config.getStringList("groups." + key + ".permissions", null);
-                boolean Default = config.getBoolean("groups." + key + ".default", false);
-                String prefix = config.getString("groups." + key + ".info.prefix", null);
-                String suffix = config.getString("groups." + key + ".info.suffix", null);
-                boolean build = config.getBoolean("groups." + key + ".info.build", false);
-
-                if (Default && ( (this.WorldBase.get(world)==null)||(this.WorldBase.get(world).isEmpty()) ) ) {
-                    this.WorldBase.put(world, key.toLowerCase());
-                }
 
-                if (inheritance.size() > 0) {
-                    Inheritance.addAll(inheritance);
-                }
+            return;
+        }
 
-                if (permissions.size() > 0) {
-                    Permissions.addAll(permissions);
-                }
+        if (this.watcher == null) {
+            this.watcher = new WorldWatcher(this, (YamlStorage) this.storage);
+        }
 
-                this.WorldGroups.get(world).put(key.toLowerCase(), Permissions);
-                this.WorldGroupsData.get(world).put(key.toLowerCase(), new Object[]{key, prefix, suffix, build});
+        this.watcher.setDelay(delay);
+        this.watcher.start();
+    }
 
-                if (Inheritance.size() > 0) {
-                   this.WorldGroupsInheritance.get(world).put(key.toLowerCase(), Inheritance);
-                }
+    /**
+     * Tells the watcher a world file now holds what the handler wrote.
+     */
+    private void written(String world) {
+        WorldWatcher watcher;
+
+        synchronized (this) {
+            watcher = this.watcher;
+        }
+
+        if (watcher != null) {
+            watcher.seen(world);
+        }
+    }
+
+    private static Integer toInteger(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+
+        if (value instanceof String) {
+            try {
+                return Integer.valueOf((String) value);
+            } catch (NumberFormatException e) {
+                return null;
             }
         }
 
-        if (userKeys != null) {
-            for (String key : userKeys) {
-                Permissions = new HashSet<String>();
+        return null;
+    }
 
-                // Configuration
-                permissions = config.getStringList("users." + key + ".permissions", null);
-                group = config.getString("users." + key + ".group");
+    /**
+     * Reads a world into a new model. Nothing is published here, the caller
+     * swaps the model in once it is complete, so checks running on other
+     * threads see either the previous data or the new data and never a
+     * missing or half-built world.
+     *
+     * @param world - Lowercased world.
+     * @return WorldModel
+     */
+    private WorldModel readWorld(String world) {
+        WorldBuilder builder = new WorldBuilder(world, this.storage.readsUsersOnDemand());
+        PermissionStorage.Source source;
 
-                if (group != null) {
-                    if (!group.isEmpty()) {
-                        this.WorldUserGroups.get(world).put(key.toLowerCase(), group);
-                    }
-                } else {
-                    this.WorldUserGroups.get(world).put(key.toLowerCase(), this.WorldBase.get(world));
-                }
+        try {
+            source = this.storage.read(world, builder);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read world " + world + ": " + e.getMessage(), e);
+        }
 
-                if (permissions!=null && permissions.size() > 0) {
-                    Permissions.addAll(permissions);
-                }
+        return this.read(world, source, builder);
+    }
+
+    /**
+     * Reads a world through a configuration given by the caller, loading it in full.
+     *
+     * @param world - Lowercased world.
+     * @param config
+     * @return WorldModel
+     */
+    private WorldModel loadConfiguration(String world, Configuration config) {
+        WorldBuilder builder = new WorldBuilder(world);
+        PermissionStorage.Source source;
+
+        if (this.storage instanceof YamlStorage) {
+            source = ((YamlStorage) this.storage).load(world, config, builder);
+        } else {
+            config.load();
+            PermissionStorage.read(config, builder);
+            source = new PermissionStorage.Source(config, true);
+        }
+
+        return this.read(world, source, builder);
+    }
 
-                this.WorldUserPermissions.get(world).put(key.toLowerCase(), Permissions);
+    private WorldModel read(String world, PermissionStorage.Source source, WorldBuilder builder) {
+        if (this.storage.hasPending(world)) {
+            this.persister.journaled(world);
+        }
+
+        if (world.equalsIgnoreCase(this.defaultWorld)) {
+            this.configure(builder.Settings);
+        }
+
+        Object copies = builder.Settings.get("copies");
+        return this.build(world, source, (copies == null) ? null : copies.toString(), builder);
+    }
+
+    /**
+     * Builds the model of a read world. A world other than the default that
+     * copies another keeps none of its own data, and a world without data
+     * of its own copies the default world.
+     */
+    private WorldModel build(String world, PermissionStorage.Source source, String copies, WorldBuilder builder) {
+        if (!world.equalsIgnoreCase(this.defaultWorld)) {
+            if (copies != null && !copies.isEmpty()) {
+                return new WorldBuilder(world).build(source, copies, new DecisionCache(this.cacheSize), this.userIdle);
+            }
+
+            if (!this.storage.exists(world)) {
+                return builder.build(source, this.defaultWorld, new DecisionCache(this.cacheSize), this.userIdle);
             }
         }
+
+        return builder.build(source, null, new DecisionCache(this.cacheSize), this.userIdle);
     }
 
     @SuppressWarnings("unused")
@@ -258,232 +824,439 @@ public class Control extends PermissionHandler {
     }
 
     public boolean permission(Player player, String permission) {
-        return permission( player.getWorld().getName(), player.getName(), permission);
+        return this.has(this.getSubject(player), permission);
     }
-    
-    public boolean permission(String world, String playerName, String permission) {
-        Set<String> Permissions = new HashSet<String>();
-        Set<String> GroupPermissions = new HashSet<String>();
-        Set<String> GroupInheritedPermissions = new HashSet<String>();
-        String group = "";
-        playerName = playerName.toLowerCase();
-        world = world.toLowerCase();
 
+    public boolean has(PermissionSubject subject, String permission) {
+        // A stale subject may hold a cache its world has since replaced, so only trust a current one.
+        subject = this.refresh(subject);
+
+        long key = DecisionCache.key(subject.player, this.NodeIds.id(permission));
+        DecisionCache Cached = subject.model.getCache();
+        Boolean decision = Cached.lookup(key);
+
+        if (decision != null) {
+            return decision;
+        }
+
+        // Taken before checking the subject again, so a decision raced by an edit is not cached.
+        long stamp = Cached.getStamp();
+        boolean result = this.refresh(subject).resolve(permission);
+
+        Cached.put(key, result, stamp);
+        return result;
+    }
+
+    public PermissionNode compile(String node) {
+        return new PermissionNode(node, this.NodeIds.pin(node));
+    }
+
+    public boolean has(Player player, PermissionNode node) {
+        return this.has(this.getSubject(player), node);
+    }
+
+    public boolean has(String world, String playerName, PermissionNode node) {
+        // Fix to disable console users getting errors
+        if (playerName == null && world == null)
+        {
+        	return true;
+        }
+
+        world = this.resolveWorld(world);
+
+        long key = DecisionCache.key(this.PlayerIds.id(playerName), node.id);
+        DecisionCache Cached = this.Models.get(world).getCache();
+        Boolean decision = Cached.lookup(key);
+
+        if (decision != null) {
+            return decision;
+        }
+
+        long stamp = Cached.getStamp();
+        boolean result = this.subject(world, playerName).resolve(node);
+
+        Cached.put(key, result, stamp);
+        return result;
+    }
+
+    public boolean has(PermissionSubject subject, PermissionNode node) {
+        subject = this.refresh(subject);
+
+        long key = DecisionCache.key(subject.player, node.id);
+        DecisionCache Cached = subject.model.getCache();
+        Boolean decision = Cached.lookup(key);
+
+        if (decision != null) {
+            return decision;
+        }
+
+        long stamp = Cached.getStamp();
+        boolean result = this.refresh(subject).resolve(node);
+
+        Cached.put(key, result, stamp);
+        return result;
+    }
+
+    public PermissionSubject getSubject(Player player) {
+        String world = player.getWorld().getName();
+        PermissionSubject subject = this.Subjects.get(player.getName());
+        PermissionSubject current;
+
+        if (subject == null || !subject.world.equals(world)) {
+            current = this.subject(world, player.getName());
+        } else {
+            current = this.refresh(subject);
+        }
+
+        if (current != subject) {
+            this.Subjects.put(player.getName(), current);
+        }
+
+        return current;
+    }
+
+    public void updateSubject(Player player, String world) {
+        this.Subjects.put(player.getName(), this.subject(world, player.getName()));
+    }
+
+    public void removeSubject(Player player) {
+        this.Subjects.remove(player.getName());
+
+        final int gone = this.PlayerIds.find(player.getName());
+
+        if (gone < 0) {
+            return;
+        }
+
+        // The player is not coming back soon, their decisions would only take up room.
+        for (WorldModel model : this.Models.values()) {
+            model.getCache().invalidate(new DecisionCache.Filter() {
+                public boolean matches(int player, int permission) {
+                    return player == gone;
+                }
+            });
+        }
+    }
+
+    /**
+     * Resolves a player against the current data of a world.
+     *
+     * @param world - World as the player is in it.
+     * @param playerName
+     * @return PermissionSubject
+     */
+    private PermissionSubject subject(String world, String playerName) {
+        String resolved = this.resolveWorld(world);
+        int player = this.PlayerIds.id(playerName);
+        String name = this.PlayerIds.getName(player, playerName);
+        WorldModel model = this.model(resolved, name);
+
+        return new PermissionSubject(world, name, player, model, this.getUserPermissions(model, name), this.getGroupPermissions(model, name));
+    }
+
+    /**
+     * Grabs a subject resolved against the current data of its world.
+     *
+     * @param subject
+     * @return PermissionSubject. The same subject when its world has not changed since it was resolved.
+     */
+    private PermissionSubject refresh(PermissionSubject subject) {
+        if (this.Models.get(subject.model.getWorld()) == subject.model) {
+            return subject;
+        }
+
+        return this.subject(subject.world, subject.name);
+    }
+    
+    public boolean permission(String world, String playerName, String permission) {
         // Fix to disable console users getting errors
         if (playerName == null && world == null)
         {
         	return true;
         }
-        
-        // Load if it isn't already
-        this.loadWorld(world);
 
-        if(this.WorldInheritance.containsKey(world) && !world.equals(this.defaultWorld)) {
-            world = this.WorldInheritance.get(world);
+        world = this.resolveWorld(world);
 
-            this.loadWorld(world);
-        }
+        // Ids are interned, so a cached decision is found without building any strings.
+        int player = this.PlayerIds.id(playerName);
+        long key = DecisionCache.key(player, this.NodeIds.id(permission));
+        DecisionCache Cached = this.Models.get(world).getCache();
+        Boolean decision = Cached.lookup(key);
 
-        if (this.WorldCache.get(world).containsKey(playerName + "," + permission)) {
-            return this.WorldCache.get(world).get(playerName + "," + permission);
+        if (decision != null) {
+            return decision;
         }
 
-        Map<String, Set<String>> UserPermissions = this.WorldUserPermissions.get(world);
-        Map<String, Set<String>> Groups = this.WorldGroups.get(world);
-        Map<String, Set<String>> GroupsInheritance = this.WorldGroupsInheritance.get(world);
-        Map<String, Boolean> Cached = this.WorldCache.get(world);
-        String base = this.WorldBase.get(world);
+        // Taken before reading the model, so a decision raced by an edit is not cached.
+        long stamp = Cached.getStamp();
+        String name = this.PlayerIds.getName(player, playerName);
+        boolean result = this.resolve(this.model(world, name), name, permission);
 
-        if (this.WorldUserPermissions.get(world).containsKey(playerName)) {
-            Permissions = UserPermissions.get(playerName);
-            group = getGroup(world, playerName).toLowerCase();
+        Cached.put(key, result, stamp);
+        return result;
+    }
 
-            if ( Groups != null && !Groups.isEmpty()) {
-                if (Groups.containsKey(group)) {
-                    GroupPermissions = Groups.get(group);
-                }
+    public boolean[] check(Player player, String[] permissions) {
+        boolean[] results = new boolean[permissions.length];
+        this.decide(this.getSubject(player), permissions, results, null);
+        return results;
+    }
 
-                if (GroupsInheritance.containsKey(group)) {
-                    GroupInheritedPermissions = getInheritancePermissions(world, group);
-                }
-            } else {
-                Cached.put(playerName + "," + permission, false);
-                return false;
-            }
+    public boolean[] check(String world, String playerName, String[] permissions) {
+        boolean[] results = new boolean[permissions.length];
+        this.decide(world, playerName, permissions, results, null);
+        return results;
+    }
 
-        } else {
-            if (base == null || base.isEmpty()) {
-                Cached.put(playerName + "," + permission, false);
-                return false;
+    public boolean hasAll(Player player, String[] permissions) {
+        return this.decide(this.getSubject(player), permissions, null, false) < 0;
+    }
+
+    public boolean hasAll(String world, String playerName, String[] permissions) {
+        return this.decide(world, playerName, permissions, null, false) < 0;
+    }
+
+    public boolean hasAny(Player player, String[] permissions) {
+        return this.decide(this.getSubject(player), permissions, null, true) >= 0;
+    }
+
+    public boolean hasAny(String world, String playerName, String[] permissions) {
+        return this.decide(world, playerName, permissions, null, true) >= 0;
+    }
+
+    /**
+     * Decides a batch of nodes for one player. The world, the player and
+     * their node sets are resolved once for the whole batch, through a
+     * {@link PermissionSubject}.
+     *
+     * @param world
+     * @param playerName
+     * @param permissions
+     * @param results - Receives each decision, may be null.
+     * @param until - Stop at the first decision equal to this, null to decide every node.
+     * @return int, index of the node it stopped at or -1 if it went through all of them.
+     */
+    private int decide(String world, String playerName, String[] permissions, boolean[] results, Boolean until) {
+        // Fix to disable console users getting errors
+        if (playerName == null && world == null)
+        {
+            if (results != null) {
+                Arrays.fill(results, true);
             }
 
-            group = base.toLowerCase();
+            return (Boolean.TRUE.equals(until) && permissions.length > 0) ? 0 : -1;
+        }
 
-            if (Groups != null && !Groups.isEmpty()) {
-                if (Groups.containsKey(group)) {
-                    GroupPermissions = Groups.get(group);
-                }
+        return this.decide(this.subject(world, playerName), permissions, results, until);
+    }
+
+    private int decide(PermissionSubject subject, String[] permissions, boolean[] results, Boolean until) {
+        subject = this.refresh(subject);
+
+        DecisionCache Cached = subject.model.getCache();
+        long stamp = Cached.getStamp();
+        boolean current = false;
+
+        for (int i = 0; i < permissions.length; i++) {
+            long key = DecisionCache.key(subject.player, this.NodeIds.id(permissions[i]));
+            Boolean decision = Cached.lookup(key);
 
-                if (GroupsInheritance.containsKey(group)) {
-                    GroupInheritedPermissions = getInheritancePermissions(world, group);
+            if (decision == null) {
+                // Check again past the stamp, so a decision raced by an edit is not cached.
+                if (!current) {
+                    subject = this.refresh(subject);
+                    current = true;
                 }
-            } else {
-                Cached.put(playerName + "," + permission, false);
-                return false;
+
+                decision = subject.resolve(permissions[i]);
+                Cached.put(key, decision, stamp);
             }
-        }
 
-        String[] nodeHierachy = permission.split("\\.");
+            if (results != null) {
+                results[i] = decision;
+            }
 
-        if (GroupInheritedPermissions.size() > 0) {
-        	GroupPermissions.addAll(GroupInheritedPermissions);
+            if (until != null && decision.booleanValue() == until.booleanValue()) {
+                return i;
+            }
         }
 
-        if (Permissions == null || GroupPermissions == null) {
-            Cached.put(playerName + "," + permission, false);
-            return false;
-        }
+        return -1;
+    }
+
+    /**
+     * Works out a decision from one snapshot of a world, bypassing the cache.
+     *
+     * @param model
+     * @param playerName - Lowercased player name.
+     * @param permission
+     * @return boolean
+     */
+    private boolean resolve(WorldModel model, String playerName, String permission) {
+        NodeSet GroupPermissions = this.getGroupPermissions(model, playerName);
 
-        if(GroupPermissions.contains("-" + permission) || Permissions.contains("-" + permission)) {
-            Cached.put(playerName + "," + permission, false);
+        if (GroupPermissions == null) {
             return false;
         }
 
-        if (GroupPermissions.contains("*") || Permissions.contains("*")) {
-            Cached.put(playerName + "," + permission, true);
-            return true;
-        }
+        return model.getNodes().has(permission, this.getUserPermissions(model, playerName), GroupPermissions);
+    }
 
-        if (GroupPermissions.contains(permission) || Permissions.contains(permission)) {
-            Cached.put(playerName + "," + permission, true);
-            return true;
-        }
+    /**
+     * Grabs a player's own nodes.
+     *
+     * @param model
+     * @param playerName - Lowercased player name.
+     * @return NodeSet. If the player has no entry return the empty set.
+     */
+    private NodeSet getUserPermissions(WorldModel model, String playerName) {
+        NodeSet UserPermissions = model.getUsers().nodes(playerName);
+        return (UserPermissions == null) ? NodeSet.EMPTY : UserPermissions;
+    }
 
-        if (permission.contains(".")) {
-            String setting = "";
-            String node = "";
+    /**
+     * Grabs the inherited nodes of the group a player resolves through.
+     *
+     * @param model
+     * @param playerName - Lowercased player name.
+     * @return NodeSet. If the player has no group or the world no groups at all return null, every node is denied then.
+     */
+    private NodeSet getGroupPermissions(WorldModel model, String playerName) {
+        String group = "";
 
-            for (String nextLevel : nodeHierachy) {
-                setting += nextLevel + ".";
-                node = setting + "*";
+        Map<String, NodeSet> Groups = model.getGroups();
+        String base = model.getBase();
 
-                if (GroupPermissions.contains(node) || Permissions.contains(node)) {
-                    Cached.put(playerName + "," + permission, true);
-                    return true;
-                }
-                else {
-                    continue;
-                }
+        if (model.getUsers().contains(playerName)) {
+            group = getGroupKey(model, playerName);
+        } else {
+            if (base == null || base.isEmpty()) {
+                return null;
             }
+
+            group = base.toLowerCase();
         }
 
-        Cached.put(playerName + "," + permission, false);
-        return false;
+        if (Groups == null || Groups.isEmpty()) {
+            return null;
+        }
+
+        return model.getResolved().getPermissions(group);
     }
 
-    private Set<String> getInheritance(String world, String group) {
-        if (this.WorldGroupsInheritance.containsKey(world)) {
-            Map<String, Set<String>> WorldGroupInheritance = this.WorldGroupsInheritance.get(world);
+    /**
+     * Lowercased name of the group a player resolves through in permission().
+     *
+     * @param model
+     * @param name - Lowercased player name.
+     * @return String. If neither the player nor the world has a group return "".
+     */
+    private String getGroupKey(WorldModel model, String name) {
+        String group = null;
 
-            if (WorldGroupInheritance.size() > 0) {
-                if(WorldGroupInheritance.containsKey(group.toLowerCase())) {
-                    return WorldGroupInheritance.get(group.toLowerCase());
-                }
-            }
+        if (model.getUsers().contains(name)) {
+            group = model.getUsers().group(name);
         }
 
-        return new HashSet<String>();
-    }
+        if (group == null) {
+            group = model.getBase();
+        }
 
-    @SuppressWarnings("unchecked")
-	private Object[] getInheritancePermissions(String world, Set<String> Permissions, Set<String> Inheritance, Set<String> Checked, String group) {
-        Map<String, Set<String>> Groups = this.WorldGroups.get(world);
+        return (group == null) ? "" : group.toLowerCase();
+    }
 
-        group = group.toLowerCase();
+    /**
+     * Drops the cached decisions an edit of a group's nodes can change: those
+     * of players resolving through the group, directly or by inheritance, for
+     * permissions the edited node covers.
+     *
+     * @param world - Resolved world name.
+     * @param group
+     * @param node
+     */
+    private void invalidateGroup(String world, String group, final String node) {
+        final WorldModel model = this.Models.get(world);
+        final String edited = group.toLowerCase();
+        final Map<Integer, Boolean> Affected = new HashMap<Integer, Boolean>();
 
-        if (Inheritance.size() > 0) {
-            for (String inherited : Inheritance) {
-                inherited = inherited.toLowerCase();
-                Set<String> GroupPermissions = Groups.get(inherited.toLowerCase());
-                Set<String> GottenInheritance = getInheritance(world, inherited);
+        model.getCache().invalidate(new DecisionCache.Filter() {
+            public boolean matches(int player, int permission) {
+                String name = NodeIds.getName(permission);
 
-                if (GroupPermissions == null) {
-                    continue;
+                if (name == null) {
+                    return true;
                 }
 
-                if (GroupPermissions.size() > 0) {
-                    Permissions.addAll(GroupPermissions);
+                if (!NodeDictionary.covers(node, name)) {
+                    return false;
                 }
 
-                if (!Checked.contains(inherited)) {
-                    Checked.add(inherited);
-                    Object[] InheritedPermissions = getInheritancePermissions(world, Permissions, GottenInheritance, Checked, inherited);
+                Boolean affected = Affected.get(player);
+
+                if (affected == null) {
+                    String user = PlayerIds.getName(player);
 
-                    if (((Set<String>) InheritedPermissions[0]).size() > 0) {
-                        Permissions.addAll((Set<String>) InheritedPermissions[0]);
+                    if (user == null) {
+                        return true;
                     }
+
+                    String group = getGroupKey(model, user);
+                    affected = group.equals(edited) || model.getResolved().getAncestors(group).contains(edited);
+                    Affected.put(player, affected);
                 }
-            }
-        } else {
-            Set<String> GroupPermissions = Groups.get(group);
 
-            if (GroupPermissions.size() > 0) {
-                Permissions.addAll(GroupPermissions);
+                return affected;
             }
-        }
-
-        return new Object[]{Permissions, Checked};
+        });
     }
 
-    @SuppressWarnings("unchecked")
-	private Set<String> getInheritancePermissions(String world, String group) {
-        group = group.toLowerCase();
-        Map<String, Set<String>> Groups = this.WorldGroups.get(world);
-        Set<String> Permissions = new HashSet<String>();
-        Set<String> Inheritance = getInheritance(world, group);
-        Set<String> Checked = new HashSet<String>();
-
-        if (Inheritance.size() > 0 && !Inheritance.isEmpty()) {
-            for (String inherited : Inheritance) {
-                inherited = inherited.toLowerCase();
-                Set<String> GroupPermissions = Groups.get(inherited);
-
-                if (GroupPermissions == null) {
-                    continue;
-                }
+    /**
+     * Drops the cached decisions of a player that an edit of one of their
+     * nodes can change.
+     *
+     * @param world - Resolved world name.
+     * @param user
+     * @param node
+     */
+    private void invalidateUser(String world, String user, final String node) {
+        final int edited = this.PlayerIds.find(user);
 
-                if (GroupPermissions.size() > 0) {
-                    Permissions.addAll(GroupPermissions);
-                }
+        if (edited < 0) {
+            return;
+        }
+
+        this.Models.get(world).getCache().invalidate(new DecisionCache.Filter() {
+            public boolean matches(int player, int permission) {
+                String name = NodeIds.getName(permission);
+                return player == edited && (name == null || NodeDictionary.covers(node, name));
+            }
+        });
+    }
 
-                if (getInheritance(world, inherited).size() > 0 && !Checked.contains(inherited)) {
-                    Checked.add(inherited);
-                    Object[] InheritedPermissions = getInheritancePermissions(world, Permissions, getInheritance(world, inherited), Checked, inherited);
+    private Set<String> getInheritance(String world, String group) {
+        if (this.Models.containsKey(world)) {
+            Map<String, Set<String>> WorldGroupInheritance = this.Models.get(world).getGroupsInheritance();
 
-                    if (((Set<String>) InheritedPermissions[0]).size() > 0) {
-                        Permissions.addAll((Set<String>) InheritedPermissions[0]);
-                    }
+            if (WorldGroupInheritance.size() > 0) {
+                if(WorldGroupInheritance.containsKey(group.toLowerCase())) {
+                    return WorldGroupInheritance.get(group.toLowerCase());
                 }
             }
         }
 
-        return Permissions;
+        return new HashSet<String>();
     }
 
     public boolean inGroup(String world, String name, String group) {
-        this.loadWorld(world);
-
-        if(this.WorldInheritance.containsKey(world) && !world.equals(this.defaultWorld)) {
-            world = this.WorldInheritance.get(world);
-
-            this.loadWorld(world);
-        }
+        world = this.resolveWorld(world);
 
         name = name.toLowerCase();
         group = group.toLowerCase();
 
-        if (this.WorldUserPermissions.get(world).containsKey(name)) {
-            String Group = (String) this.WorldUserGroups.get(world).get(name);
+        WorldModel model = this.model(world, name);
+
+        if (model.getUsers().contains(name)) {
+            String Group = model.getUsers().group(name);
             Set<String> Inherited = getInheritance(world, Group);
 
             if (Inherited.contains(group) || Group.equalsIgnoreCase(group)) {
@@ -495,13 +1268,16 @@ public class Control extends PermissionHandler {
     }
     
     public boolean inSingleGroup(String world, String name, String group) {
+    	world = world.toLowerCase();
     	this.loadWorld(world);
     	
     	name = name.toLowerCase();
     	group = group.toLowerCase();
     	
-    	if (this.WorldUserPermissions.get(world).containsKey(name)) {
-    		String Group = (String) this.WorldUserGroups.get(world).get(name);
+    	WorldModel model = this.model(world, name);
+    	
+    	if (model.getUsers().contains(name)) {
+    		String Group = model.getUsers().group(name);
     		
     		if (Group.equalsIgnoreCase(group)) {
     			return true;
@@ -512,43 +1288,35 @@ public class Control extends PermissionHandler {
     }
 
     public String getGroup(String world, String name) {
-        this.loadWorld(world);
-
-        if(this.WorldInheritance.containsKey(world) && !world.equals(this.defaultWorld)) {
-            world = this.WorldInheritance.get(world);
-
-            this.loadWorld(world);
-        }
+        world = this.resolveWorld(world);
 
         name = name.toLowerCase();
 
-        if (this.WorldUserPermissions.get(world).containsKey(name) && this.WorldUserGroups.get(world).containsKey(name)) {
-            String group = (String) ((Object[]) this.WorldGroupsData.get(world).get(this.WorldUserGroups.get(world).get(name).toLowerCase()))[0];
+        WorldModel model = this.model(world, name);
+
+        if (model.getUsers().contains(name) && model.getUsers().group(name) != null) {
+            String group = (String) ((Object[]) model.getGroupsData().get(model.getUsers().group(name).toLowerCase()))[0];
             if (group != null) {
                 return group;
             }
         }
-        if (this.WorldBase.get(world).equals("")) {
+        if (model.getBase().equals("")) {
             return null;
         } else {
-            String group = (String) ((Object[]) this.WorldGroupsData.get(world).get(this.WorldBase.get(world)))[0];
+            String group = (String) ((Object[]) model.getGroupsData().get(model.getBase()))[0];
             return (group == null) ? null : group;
         }
     }
 
     public String getGroupPrefix(String world, String group) {
-        this.loadWorld(world);
-
-        if(this.WorldInheritance.containsKey(world) && !world.equals(this.defaultWorld)) {
-            world = this.WorldInheritance.get(world);
-
-            this.loadWorld(world);
-        }
+        world = this.resolveWorld(world);
 
         group = group.toLowerCase();
 
-        if (this.WorldGroups.get(world).containsKey(group)) {
-            String prefix = (String) ((Object[]) this.WorldGroupsData.get(world).get(group))[1];
+        WorldModel model = this.Models.get(world);
+
+        if (model.getGroups().containsKey(group)) {
+            String prefix = (String) ((Object[]) model.getGroupsData().get(group))[1];
             return (prefix == null) ? null : Messaging.parse(prefix);
         } else {
             return null;
@@ -556,18 +1324,14 @@ public class Control extends PermissionHandler {
     }
 
     public String getGroupSuffix(String world, String group) {
-        this.loadWorld(world);
-
-        if(this.WorldInheritance.containsKey(world) && !world.equals(this.defaultWorld)) {
-            world = this.WorldInheritance.get(world);
-
-            this.loadWorld(world);
-        }
+        world = this.resolveWorld(world);
 
         group = group.toLowerCase();
 
-        if (this.WorldGroups.get(world).containsKey(group)) {
-            String suffix = (String) ((Object[]) this.WorldGroupsData.get(world).get(group))[2];
+        WorldModel model = this.Models.get(world);
+
+        if (model.getGroups().containsKey(group)) {
+            String suffix = (String) ((Object[]) model.getGroupsData().get(group))[2];
             return (suffix == null) ? null : Messaging.parse(suffix);
         } else {
             return null;
@@ -575,109 +1339,103 @@ public class Control extends PermissionHandler {
     }
 
     public boolean canGroupBuild(String world, String group) {
-        this.loadWorld(world);
-
-        if(this.WorldInheritance.containsKey(world) && !world.equals(this.defaultWorld)) {
-            world = this.WorldInheritance.get(world);
-
-            this.loadWorld(world);
-        }
+        world = this.resolveWorld(world);
 
         group = group.toLowerCase();
 
-        if (this.WorldGroups.get(world).containsKey(group)) {
-            return (Boolean) ((Object[]) this.WorldGroupsData.get(world).get(group))[3];
+        WorldModel model = this.Models.get(world);
+
+        if (model.getGroups().containsKey(group)) {
+            return (Boolean) ((Object[]) model.getGroupsData().get(group))[3];
         } else {
-            if (this.WorldBase.get(world).equals("")) {
+            if (model.getBase().equals("")) {
                 return false;
             } else {
-                return (Boolean) ((Object[]) this.WorldGroupsData.get(world).get(this.WorldBase.get(world)))[3];
+                return (Boolean) ((Object[]) model.getGroupsData().get(model.getBase()))[3];
             }
         }
     }
 
     public String[] getGroups(String world, String name) {
-        this.loadWorld(world);
-
-        if(this.WorldInheritance.containsKey(world) && !world.equals(this.defaultWorld)) {
-            world = this.WorldInheritance.get(world);
+        world = this.resolveWorld(world);
 
-            this.loadWorld(world);
-        }
+        WorldModel model = this.model(world, name.toLowerCase());
 
-        String Group = (String) this.WorldUserGroups.get(world).get(name.toLowerCase());
+        String Group = model.getUsers().group(name.toLowerCase());
         if (Group == null)
         {
-        	Group = (String) ((Object[]) this.WorldGroupsData.get(world).get(this.WorldBase.get(world)))[0];
+        	Group = (String) ((Object[]) model.getGroupsData().get(model.getBase()))[0];
         }
-        Set<String> Inherited = getInheritance(world, Group.toLowerCase());
+        Set<String> Inherited = new HashSet<String>(getInheritance(world, Group.toLowerCase()));
         Inherited.add(Group.toLowerCase());
 
         return Inherited.toArray(new String[0]);
     }
 
     public void setCache(String world, Map<String, Boolean> Cache) {
-        this.loadWorld(world);
+        world = this.resolveWorld(world);
 
-        if(this.WorldInheritance.containsKey(world) && !world.equals(this.defaultWorld)) {
-            world = this.WorldInheritance.get(world);
+        if(this.Models.containsKey(world)) {
+            DecisionCache Cached = new DecisionCache(this.cacheSize);
 
-            this.loadWorld(world);
-        }
+            for (Map.Entry<String, Boolean> entry : Cache.entrySet()) {
+                int split = entry.getKey().indexOf(',');
 
-        if(this.Worlds.contains(world)) {
-            this.WorldCache.put(world, Cache);
+                if (split > 0 && entry.getValue() != null) {
+                    String player = entry.getKey().substring(0, split);
+                    String permission = entry.getKey().substring(split + 1);
+                    Cached.put(DecisionCache.key(this.PlayerIds.id(player), this.NodeIds.id(permission)), entry.getValue());
+                }
+            }
+
+            synchronized (this.lockFor(world)) {
+                this.Models.put(world, this.Models.get(world).withCache(Cached));
+            }
         }
     }
    
     public void setCacheItem(String world, String player, String permission, boolean data) {
-        this.loadWorld(world);
+        world = this.resolveWorld(world);
 
-        if(this.WorldInheritance.containsKey(world) && !world.equals(this.defaultWorld)) {
-            world = this.WorldInheritance.get(world);
-
-            this.loadWorld(world);
-        }
-
-        if(this.Worlds.contains(world)) {
-            this.WorldCache.get(world).put(player + "," + permission, data);
+        if(this.Models.containsKey(world)) {
+            this.Models.get(world).getCache().put(DecisionCache.key(this.PlayerIds.id(player), this.NodeIds.id(permission)), data);
         }
     }
 
     public Map<String, Boolean> getCache(String world) {
-        this.loadWorld(world);
+        world = this.resolveWorld(world);
 
-        if(this.WorldInheritance.containsKey(world) && !world.equals(this.defaultWorld)) {
-            world = this.WorldInheritance.get(world);
+        Map<String, Boolean> Cache = new HashMap<String, Boolean>();
 
-            this.loadWorld(world);
-        }
+        if(this.Models.containsKey(world)) {
+            Map<Long, Boolean> Cached = new HashMap<Long, Boolean>();
+            this.Models.get(world).getCache().copyTo(Cached);
 
-        if(this.Worlds.contains(world)) {
-            return this.WorldCache.get(world);
+            for (Map.Entry<Long, Boolean> entry : Cached.entrySet()) {
+                long key = entry.getKey();
+                String player = this.PlayerIds.getName(DecisionCache.player(key));
+                String permission = this.NodeIds.getName(DecisionCache.node(key));
+
+                if (player != null && permission != null) {
+                    Cache.put(player + "," + permission, entry.getValue());
+                }
+            }
         }
 
-        return new HashMap<String, Boolean>();
+        return Cache;
     }
 
     public boolean getCacheItem(String world, String player, String permission) {
-        this.loadWorld(world);
-
-        if(this.WorldInheritance.containsKey(world) && !world.equals(this.defaultWorld)) {
-            world = this.WorldInheritance.get(world);
+        world = this.resolveWorld(world);
 
-            this.loadWorld(world);
-        }
-
-        if(this.WorldInheritance.containsKey(world)) {
-            world = this.WorldInheritance.get(world);
+        int playerId = this.PlayerIds.find(player);
+        int nodeId = this.NodeIds.find(permission);
 
-            this.loadWorld(world);
-        }
+        if(this.Models.containsKey(world) && playerId >= 0 && nodeId >= 0) {
+            Boolean decision = this.Models.get(world).getCache().get(DecisionCache.key(playerId, nodeId));
 
-        if(this.Worlds.contains(world)) {
-            if (this.WorldCache.get(world).containsKey(player + "," + permission)) {
-                return this.WorldCache.get(world).get(player + "," + permission);
+            if (decision != null) {
+                return decision;
             }
         }
 
@@ -685,327 +1443,275 @@ public class Control extends PermissionHandler {
     }
 
     public void removeCachedItem(String world, String player, String permission) {
-        this.loadWorld(world);
-
-        if(this.WorldInheritance.containsKey(world) && !world.equals(this.defaultWorld)) {
-            world = this.WorldInheritance.get(world);
+        world = this.resolveWorld(world);
 
-            this.loadWorld(world);
-        }
-
-        if(this.WorldInheritance.containsKey(world)) {
-            world = this.WorldInheritance.get(world);
-
-            this.loadWorld(world);
-        }
+        int playerId = this.PlayerIds.find(player);
+        int nodeId = this.NodeIds.find(permission);
 
-        if(this.Worlds.contains(world)) {
-            if (this.WorldCache.get(world).containsKey(player + "," + permission)) {
-                this.WorldCache.get(world).remove(player + "," + permission);
-            }
+        if(this.Models.containsKey(world) && playerId >= 0 && nodeId >= 0) {
+            this.Models.get(world).getCache().remove(DecisionCache.key(playerId, nodeId));
         }
     }
     
     public void clearCache() {
-        this.WorldCache.put(this.defaultWorld, new HashMap<String, Boolean>());
+        WorldModel model = this.Models.get(this.defaultWorld.toLowerCase());
+
+        if (model != null) {
+            model.getCache().clear();
+        }
     }
 
     public void clearAllCache() {
-        for(String world : this.WorldCache.keySet()) {
-            this.WorldCache.put(world, new HashMap<String, Boolean>());
+        for(WorldModel model : this.Models.values()) {
+            model.getCache().clear();
         }
     }
 
     public void clearCache(String world) {
-        if(this.WorldInheritance.containsKey(world) && !world.equals(this.defaultWorld)) {
-            world = this.WorldInheritance.get(world);
+        if(this.checkWorld(world)) {
+            this.Models.get(this.resolveWorld(world)).getCache().clear();
         }
+    }
 
-        if(this.Worlds.contains(world)) {
-            this.WorldCache.put(world, new HashMap<String, Boolean>());
+    public String getCacheStatistics(String world) {
+        world = this.resolveWorld(world);
+
+        if(this.Models.containsKey(world)) {
+            return this.Models.get(world).getCache().getStatistics();
         }
+
+        return "";
     }
     //Fixed functions by rcjrrjcr
     public void addGroupPermission(String world, String group, String node) {
-        this.loadWorld(world);
+        world = this.resolveWorld(world);
 
-        if(this.WorldInheritance.containsKey(world) && !world.equals(this.defaultWorld)) {
-            world = this.WorldInheritance.get(world);
-
-            this.loadWorld(world);
+        synchronized (this.lockFor(world)) {
+            WorldModel model = this.Models.get(world);
+            List<String> list = model.getConfig().getStringList("groups." + group + ".permissions", new LinkedList<String>());
+            if (!list.contains(node)) {
+                list.add(node);
+            }
+            model.getConfig().setProperty("groups." + group + ".permissions", list);
+            this.record(world, PermissionStorage.ADD_GROUP_PERMISSION, group, node, null);
+            //MODIFICATION START
+            NodeDictionary Nodes = model.getNodes().with(node);
+            NodeSet current = model.getGroups().get(group.toLowerCase());
+            BitSet groupPerms = (current == null) ? new BitSet() : current.toBitSet();
+            groupPerms.set(Nodes.lookup(node));
+            this.Models.put(world, model.withGroup(Nodes, group.toLowerCase(), NodeSet.of(groupPerms)));
+            this.invalidateGroup(world, group, node);
+            //MODIFICATION END
         }
-
-        List<String> list = this.WorldConfiguration.get(world).getStringList("groups." + group + ".permissions", new LinkedList<String>());
-        list.add(node);
-        this.WorldConfiguration.get(world).setProperty("groups." + group + ".permissions", list);
-        this.WorldConfigurationModification.add(world);
-        //MODIFICATION START
-        Set<String> groupPerms = this.WorldGroups.get(world).get(group.toLowerCase());
-        if(groupPerms==null) groupPerms = new HashSet<String>();
-        groupPerms.add(node);
-        this.WorldGroups.get(world).put(group, groupPerms);
-        this.clearCache(world); //TODO: Use more efficient method to clear cache for affected users
-        //MODIFICATION END
     }
     
     public void removeGroupPermission(String world, String group, String node) {
-        this.loadWorld(world);
-
-        if(this.WorldInheritance.containsKey(world) && !world.equals(this.defaultWorld)) {
-            world = this.WorldInheritance.get(world);
-
-            this.loadWorld(world);
-        }
+        world = this.resolveWorld(world);
 
-        List<String> list = this.WorldConfiguration.get(world).getStringList("groups." + group + ".permissions", new LinkedList<String>());
+        synchronized (this.lockFor(world)) {
+            WorldModel model = this.Models.get(world);
+            List<String> list = model.getConfig().getStringList("groups." + group + ".permissions", new LinkedList<String>());
         
-        if(list.contains(node)) {
-            list.remove(node);
-        }
+            list.removeAll(Collections.singleton(node));
         
-        this.WorldConfiguration.get(world).setProperty("groups." + group + ".permissions", list);
-        this.WorldConfigurationModification.add(world);
-        //MODIFICATION START
-        Set<String> groupPerms = this.WorldGroups.get(world).get(group.toLowerCase());
-        if(groupPerms==null) groupPerms = new HashSet<String>();
-        groupPerms.remove(node);
-        this.WorldGroups.get(world).put(group, groupPerms);
-        this.clearCache(world); //TODO: Use more efficient method to clear cache for affected users
-        //MODIFICATION END
+            model.getConfig().setProperty("groups." + group + ".permissions", list);
+            this.record(world, PermissionStorage.REMOVE_GROUP_PERMISSION, group, node, null);
+            //MODIFICATION START
+            NodeSet current = model.getGroups().get(group.toLowerCase());
+            BitSet groupPerms = (current == null) ? new BitSet() : current.toBitSet();
+            int id = model.getNodes().lookup(node);
+            if(id >= 0) groupPerms.clear(id);
+            this.Models.put(world, model.withGroup(model.getNodes(), group.toLowerCase(), NodeSet.of(groupPerms)));
+            this.invalidateGroup(world, group, node);
+            //MODIFICATION END
+        }
     }
     
     public void addGroupInfo(String world, String group, String node, Object data) {
-        this.loadWorld(world);
-
-        if(this.WorldInheritance.containsKey(world) && !world.equals(this.defaultWorld)) {
-            world = this.WorldInheritance.get(world);
-
-            this.loadWorld(world);
-        }
-
-        this.WorldConfiguration.get(world).setProperty("groups." + group + ".info." + node, data);
-        this.WorldConfigurationModification.add(world);
-        //MODIFICATION START
-        Object[] groupData = this.WorldGroupsData.get(world).get(group.toLowerCase());
-        if(groupData == null) groupData = new Object[]{group,"","",false};
-        if(data instanceof Boolean && node.equals("build")) groupData[3] = data;
-        else if (data instanceof String)
-        {
-        	if(node.equals("prefix")) groupData[1]= data;
-        	else if(node.equals("suffix")) groupData[2]= data;
+        world = this.resolveWorld(world);
+
+        synchronized (this.lockFor(world)) {
+            WorldModel model = this.Models.get(world);
+            model.getConfig().setProperty("groups." + group + ".info." + node, data);
+            this.record(world, PermissionStorage.SET_GROUP_INFO, group, node, data);
+            //MODIFICATION START
+            Object[] groupData = model.getGroupsData().get(group.toLowerCase());
+            groupData = (groupData == null) ? new Object[]{group,"","",false} : groupData.clone();
+            if(data instanceof Boolean && node.equals("build")) groupData[3] = data;
+            else if (data instanceof String)
+            {
+            	if(node.equals("prefix")) groupData[1]= data;
+            	else if(node.equals("suffix")) groupData[2]= data;
+            }
+            this.Models.put(world, model.withGroupData(group.toLowerCase(), groupData));
+            //MODIFICATION END
         }
-        this.WorldGroupsData.get(world).put(group.toLowerCase(), groupData);
-        //MODIFICATION END
     }
     
     public void removeGroupInfo(String world, String group, String node) {
-        this.loadWorld(world);
+        world = this.resolveWorld(world);
 
-        if(this.WorldInheritance.containsKey(world) && !world.equals(this.defaultWorld)) {
-            world = this.WorldInheritance.get(world);
-
-            this.loadWorld(world);
-        }
-
-        this.WorldConfiguration.get(world).removeProperty("groups." + group + ".info." + node);
-        this.WorldConfigurationModification.add(world);
+        synchronized (this.lockFor(world)) {
+            WorldModel model = this.Models.get(world);
+            model.getConfig().removeProperty("groups." + group + ".info." + node);
+            this.record(world, PermissionStorage.REMOVE_GROUP_INFO, group, node, null);
         
-        //MODIFICATION START
-        Object[] groupData = this.WorldGroupsData.get(world).get(group.toLowerCase());
-        if(groupData == null) groupData = new Object[]{group,"","",false};
-        if(node.equals("build")) groupData[3] = false;
-        else if(node.equals("prefix")) groupData[1]= "";
-        else if(node.equals("suffix")) groupData[2]= "";
-        this.WorldGroupsData.get(world).put(group.toLowerCase(), groupData);
-        //MODIFICATION END
+            //MODIFICATION START
+            Object[] groupData = model.getGroupsData().get(group.toLowerCase());
+            groupData = (groupData == null) ? new Object[]{group,"","",false} : groupData.clone();
+            if(node.equals("build")) groupData[3] = false;
+            else if(node.equals("prefix")) groupData[1]= "";
+            else if(node.equals("suffix")) groupData[2]= "";
+            this.Models.put(world, model.withGroupData(group.toLowerCase(), groupData));
+            //MODIFICATION END
+        }
     }
     
     public void addUserPermission(String world, String user, String node) {
-        this.loadWorld(world);
-
-        if(this.WorldInheritance.containsKey(world) && !world.equals(this.defaultWorld)) {
-            world = this.WorldInheritance.get(world);
-
-            this.loadWorld(world);
-        }
-
-        List<String> list = this.WorldConfiguration.get(world).getStringList("users." + user + ".permissions", new LinkedList<String>());
-        list.add(node);		
-        this.WorldConfiguration.get(world).setProperty("users." + user + ".permissions", list);
-        this.WorldConfigurationModification.add(world);
+        world = this.resolveWorld(world);
+        this.model(world, user.toLowerCase());
+
+        synchronized (this.lockFor(world)) {
+            WorldModel model = this.Models.get(world);
+            List<String> list = model.getConfig().getStringList("users." + user + ".permissions", new LinkedList<String>());
+            if (!list.contains(node)) {
+                list.add(node);
+            }
+            model.getConfig().setProperty("users." + user + ".permissions", list);
+            this.record(world, PermissionStorage.ADD_USER_PERMISSION, user, node, null);
         
-        //MODIFICATION START
-        Set<String> userPerms = this.WorldUserPermissions.get(world).get(user.toLowerCase());
-        if(userPerms==null) userPerms = new HashSet<String>();
-        userPerms.add(node);
-        this.WorldUserPermissions.get(world).put(user.toLowerCase(), userPerms);
+            //MODIFICATION START
+            NodeDictionary Nodes = model.getNodes().with(node);
+            NodeSet current = model.getUsers().nodes(user.toLowerCase());
+            BitSet userPerms = (current == null) ? new BitSet() : current.toBitSet();
+            userPerms.set(Nodes.lookup(node));
+            this.Models.put(world, model.withUsers(Nodes, model.getUsers().with(user.toLowerCase(), NodeSet.of(userPerms))));
 //        boolean negated = node.startsWith("-");
 //        String actualNode =  negated ? node.substring(1) : node;
 //        this.setCacheItem(world, user.toLowerCase(), actualNode, !negated);
-        this.removeCachedItem(world, user.toLowerCase(), node);
-        //MODIFICATION END
+            this.invalidateUser(world, user, node);
+            //MODIFICATION END
+        }
     }
     
     public void removeUserPermission(String world, String user, String node) {
-        this.loadWorld(world);
-
-        if(this.WorldInheritance.containsKey(world) && !world.equals(this.defaultWorld)) {
-            world = this.WorldInheritance.get(world);
-
-            this.loadWorld(world);
-        }
+        world = this.resolveWorld(world);
+        this.model(world, user.toLowerCase());
 
-        List<String> list = this.WorldConfiguration.get(world).getStringList("users." + user + ".permissions", new LinkedList<String>());
+        synchronized (this.lockFor(world)) {
+            WorldModel model = this.Models.get(world);
+            List<String> list = model.getConfig().getStringList("users." + user + ".permissions", new LinkedList<String>());
         
-        if(list.contains(node)) {
-            list.remove(node);
-        }
+            list.removeAll(Collections.singleton(node));
         
-        this.WorldConfiguration.get(world).setProperty("users." + user + ".permissions", list);
-        this.WorldConfigurationModification.add(world);
+            model.getConfig().setProperty("users." + user + ".permissions", list);
+            this.record(world, PermissionStorage.REMOVE_USER_PERMISSION, user, node, null);
         
-        //MODIFICATION START
-        Set<String> userPerms = this.WorldUserPermissions.get(world).get(user.toLowerCase());
-        if(userPerms==null) userPerms = new HashSet<String>();
-        userPerms.remove(node);
-        this.WorldUserPermissions.get(world).put(user.toLowerCase(), userPerms);
+            //MODIFICATION START
+            NodeSet current = model.getUsers().nodes(user.toLowerCase());
+            BitSet userPerms = (current == null) ? new BitSet() : current.toBitSet();
+            int id = model.getNodes().lookup(node);
+            if(id >= 0) userPerms.clear(id);
+            this.Models.put(world, model.withUsers(model.getNodes(), model.getUsers().with(user.toLowerCase(), NodeSet.of(userPerms))));
 //        boolean negated = node.startsWith("-");
 //        String actualNode =  negated ? node.substring(1) : node;
 //        this.setCacheItem(world, user.toLowerCase(), actualNode, negated);
-        this.removeCachedItem(world, user.toLowerCase(), node);
-        //MODIFICATION END
+            this.invalidateUser(world, user, node);
+            //MODIFICATION END
+        }
     }
     //End of fixes by rcjrrjcr
     public void addUserInfo(String world, String user, String node, Object data) {
-        this.loadWorld(world);
-
-        if(this.WorldInheritance.containsKey(world) && !world.equals(this.defaultWorld)) {
-            world = this.WorldInheritance.get(world);
+        world = this.resolveWorld(world);
+        this.model(world, user.toLowerCase());
 
-            this.loadWorld(world);
+        synchronized (this.lockFor(world)) {
+            this.Models.get(world).getConfig().setProperty("users." + user + ".info." + node, data);
+            this.record(world, PermissionStorage.SET_USER_INFO, user, node, data);
         }
-
-        this.WorldConfiguration.get(world).setProperty("users." + user + ".info." + node, data);
-        this.WorldConfigurationModification.add(world);
     }
     
     public void removeUserInfo(String world, String user, String node) {
-        this.loadWorld(world);
-
-        if(this.WorldInheritance.containsKey(world) && !world.equals(this.defaultWorld)) {
-            world = this.WorldInheritance.get(world);
+        world = this.resolveWorld(world);
+        this.model(world, user.toLowerCase());
 
-            this.loadWorld(world);
+        synchronized (this.lockFor(world)) {
+            this.Models.get(world).getConfig().removeProperty("users." + user + ".info." + node);
+            this.record(world, PermissionStorage.REMOVE_USER_INFO, user, node, null);
         }
-
-        this.WorldConfiguration.get(world).removeProperty("users." + user + ".info." + node);
-        this.WorldConfigurationModification.add(world);
     }
     
     public String getGroupPermissionString(String world, String group, String permission) {
-        this.loadWorld(world);
-
-        if(this.WorldInheritance.containsKey(world) && !world.equals(this.defaultWorld)) {
-            world = this.WorldInheritance.get(world);
+        world = this.resolveWorld(world);
 
-            this.loadWorld(world);
+        // Edits change the configuration in place, so it is only read under the world's lock.
+        synchronized (this.lockFor(world)) {
+            return this.Models.get(world).getConfig().getString("groups." + group + ".info." + permission, "");
         }
-
-        return this.WorldConfiguration.get(world).getString("groups." + group + ".info." + permission, "");
     }
     
     public int getGroupPermissionInteger(String world, String group, String permission) {
-        this.loadWorld(world);
-
-        if(this.WorldInheritance.containsKey(world) && !world.equals(this.defaultWorld)) {
-            world = this.WorldInheritance.get(world);
+        world = this.resolveWorld(world);
 
-            this.loadWorld(world);
+        synchronized (this.lockFor(world)) {
+            return this.Models.get(world).getConfig().getInt("groups." + group + ".info." + permission, -1);
         }
-
-        return this.WorldConfiguration.get(world).getInt("groups." + group + ".info." + permission, -1);
     }
     
     public boolean getGroupPermissionBoolean(String world, String group, String permission) {
-        this.loadWorld(world);
-
-        if(this.WorldInheritance.containsKey(world) && !world.equals(this.defaultWorld)) {
-            world = this.WorldInheritance.get(world);
+        world = this.resolveWorld(world);
 
-            this.loadWorld(world);
+        synchronized (this.lockFor(world)) {
+            return this.Models.get(world).getConfig().getBoolean("groups." + group + ".info." + permission, false);
         }
-
-        return this.WorldConfiguration.get(world).getBoolean("groups." + group + ".info." + permission, false);
     }
     
     public double getGroupPermissionDouble(String world, String group, String permission) {
-        this.loadWorld(world);
-
-        if(this.WorldInheritance.containsKey(world) && !world.equals(this.defaultWorld)) {
-            world = this.WorldInheritance.get(world);
+        world = this.resolveWorld(world);
 
-            this.loadWorld(world);
+        synchronized (this.lockFor(world)) {
+            return this.Models.get(world).getConfig().getDouble("groups." + group + ".info." + permission, -1.0);
         }
-
-        return this.WorldConfiguration.get(world).getDouble("groups." + group + ".info." + permission, -1.0);
     }
     
     public String getUserPermissionString(String world, String name, String permission) {
-        this.loadWorld(world);
-
-        if(this.WorldInheritance.containsKey(world) && !world.equals(this.defaultWorld)) {
-            world = this.WorldInheritance.get(world);
+        world = this.resolveWorld(world);
+        this.model(world, name.toLowerCase());
 
-            this.loadWorld(world);
+        synchronized (this.lockFor(world)) {
+            return this.Models.get(world).getConfig().getString("users." + name + ".info." + permission,"");
         }
-
-        return this.WorldConfiguration.get(world).getString("users." + name + ".info." + permission,"");
     }
     
     public int getUserPermissionInteger(String world, String name, String permission) {
-        this.loadWorld(world);
-
-        if(this.WorldInheritance.containsKey(world) && !world.equals(this.defaultWorld)) {
-            world = this.WorldInheritance.get(world);
+        world = this.resolveWorld(world);
+        this.model(world, name.toLowerCase());
 
-            this.loadWorld(world);
+        synchronized (this.lockFor(world)) {
+            return this.Models.get(world).getConfig().getInt("users." + name + ".info." + permission, -1);
         }
-
-        return this.WorldConfiguration.get(world).getInt("users." + name + ".info." + permission, -1);
     }
     
     public boolean getUserPermissionBoolean(String world, String name, String permission) {
-        this.loadWorld(world);
-
-        if(this.WorldInheritance.containsKey(world) && !world.equals(this.defaultWorld)) {
-            world = this.WorldInheritance.get(world);
+        world = this.resolveWorld(world);
+        this.model(world, name.toLowerCase());
 
-            this.loadWorld(world);
+        synchronized (this.lockFor(world)) {
+            return this.Models.get(world).getConfig().getBoolean("users." + name + ".info." + permission, false);
         }
-
-        return this.WorldConfiguration.get(world).getBoolean("users." + name + ".info." + permission, false);
     }
     
     public double getUserPermissionDouble(String world, String name, String permission) {
-        this.loadWorld(world);
-
-        if(this.WorldInheritance.containsKey(world) && !world.equals(this.defaultWorld)) {
-            world = this.WorldInheritance.get(world);
+        world = this.resolveWorld(world);
+        this.model(world, name.toLowerCase());
 
-            this.loadWorld(world);
+        synchronized (this.lockFor(world)) {
+            return this.Models.get(world).getConfig().getDouble("users." + name + ".info." + permission, -1.0);
         }
-
-        return this.WorldConfiguration.get(world).getDouble("users." + name + ".info." + permission, -1.0);
     }
     
     public String getPermissionString(String world, String name, String permission) {
-        this.loadWorld(world);
-
-        if(this.WorldInheritance.containsKey(world) && !world.equals(this.defaultWorld)) {
-            world = this.WorldInheritance.get(world);
-
-            this.loadWorld(world);
-        }
+        world = this.resolveWorld(world);
 
         String group = this.getGroup(world, name);
         String userPermission = this.getUserPermissionString(world, name, permission);
@@ -1023,13 +1729,7 @@ public class Control extends PermissionHandler {
     }
     
     public boolean getPermissionBoolean(String world, String name, String permission) {
-        this.loadWorld(world);
-
-        if(this.WorldInheritance.containsKey(world) && !world.equals(this.defaultWorld)) {
-            world = this.WorldInheritance.get(world);
-
-            this.loadWorld(world);
-        }
+        world = this.resolveWorld(world);
 
         String group = this.getGroup(world, name);
         boolean userPermission = this.getUserPermissionBoolean(world, name, permission);
@@ -1048,13 +1748,7 @@ public class Control extends PermissionHandler {
     
     @SuppressWarnings("null")
 	public int getPermissionInteger(String world, String name, String permission) {
-        this.loadWorld(world);
-
-        if(this.WorldInheritance.containsKey(world) && !world.equals(this.defaultWorld)) {
-            world = this.WorldInheritance.get(world);
-
-            this.loadWorld(world);
-        }
+        world = this.resolveWorld(world);
 
         String group = this.getGroup(world, name);
         int userPermission = this.getUserPermissionInteger(world, name, permission);
@@ -1072,13 +1766,7 @@ public class Control extends PermissionHandler {
     }
     
     public double getPermissionDouble(String world, String name, String permission) {
-        this.loadWorld(world);
-
-        if(this.WorldInheritance.containsKey(world) && !world.equals(this.defaultWorld)) {
-            world = this.WorldInheritance.get(world);
-
-            this.loadWorld(world);
-        }
+        world = this.resolveWorld(world);
 
         String group = this.getGroup(world, name);
         double userPermission = this.getUserPermissionDouble(world, name, permission);
@@ -1098,16 +1786,81 @@ public class Control extends PermissionHandler {
     @Override
     public void save(String world)
     {
-    	Configuration worldConfig = this.WorldConfiguration.get(world);
-    	if(worldConfig!=null) worldConfig.save();
+    	this.persist(world.toLowerCase());
     }
 
 	@Override
 	public void saveAll() {
-		for(String world : this.WorldConfigurationModification)
+		for(String world : this.persister.drain())
 		{
-			if(this.WorldConfiguration.containsKey(world)) this.WorldConfiguration.get(world).save();
+			if (!this.persist(world)) {
+				this.persister.failed(world);
+			}
 		}
 	}
+
+    /**
+     * Records an edit of a world with the storage, which either keeps it
+     * safe until shutdown or asks for the world to be saved in the
+     * background. The caller holds the world's lock.
+     */
+    private void record(String world, byte type, String name, String node, Object value) {
+        boolean due;
+
+        try {
+            due = this.storage.record(world, type, name, node, value);
+        } catch (IOException e) {
+            log.warning("[Permissions] Could not record an edit of " + world + ", saving it instead: " + e.getMessage());
+            due = true;
+        }
+
+        if (due) {
+            this.persister.dirty(world);
+        } else {
+            this.persister.journaled(world);
+        }
+    }
+
+    public boolean shutdown(long timeout) {
+        this.watch(false, 0L);
+
+        boolean saved = this.persister.shutdown(timeout);
+        this.storage.close();
+        return saved;
+    }
+
+    /**
+     * Saves a world. The storage copies what it needs under the world's
+     * lock and writes it outside of it, so edits only wait for the copy.
+     *
+     * @param world - Lowercased world.
+     * @return boolean, false if the world could not be written.
+     */
+    boolean persist(String world) {
+        PermissionStorage.Save save;
+
+        synchronized (this.lockFor(world)) {
+            WorldModel model = this.Models.get(world);
+
+            if (model == null) {
+                return true;
+            }
+
+            try {
+                save = this.storage.save(world, model.getConfig());
+            } catch (IOException e) {
+                log.warning("[Permissions] Could not save world " + world + ": " + e.getMessage());
+                return false;
+            }
+        }
+
+        if (save != null && !save.write()) {
+            log.warning("[Permissions] Could not save world " + world + ".");
+            return false;
+        }
+
+        this.written(world);
+        return true;
+    }
 	//End of addition by rcjrrjcr
 }
@@ -0,0 +1,451 @@
+package com.nijiko.permissions;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Permissions 2.x
+ * Copyright (C) 2011  Matt 'The Yeti' Burnett <admin@theyeticave.net>
+ * Original Credit & Copyright (C) 2010 Nijikokun <nijikokun@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Permissions Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Permissions Public License for more details.
+ *
+ * You should have received a copy of the GNU Permissions Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Per-world cache of permission decisions.
+ * <br /><br />
+ * Keys pack a player id and a node id from {@link NameTable} into one long,
+ * and live in open-addressed tables of primitives, so a lookup allocates
+ * nothing. Once the cache holds its limit of entries a clock sweep evicts
+ * an entry that has not been hit since the hand last passed it. A limit of
+ * 0 or less disables the limit.
+ * <br /><br />
+ * The cache is split into segments with a lock each, so threads checking
+ * different players rarely wait on each other. A decision computed while
+ * the data behind it was being edited is not cached: callers take a stamp
+ * before reading that data and hand it back to put(), which drops the
+ * decision when an invalidation or clear happened in between.
+ *
+ * @author TheYeti
+ */
+public class DecisionCache {
+
+    private static final int SEGMENTS = 16;
+
+    private final int limit;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final AtomicLong stamp = new AtomicLong();
+
+    public DecisionCache(int limit) {
+        this.limit = limit;
+
+        int segmentLimit = (limit > 0) ? (limit + SEGMENTS - 1) / SEGMENTS : 0;
+
+        for (int i = 0; i < SEGMENTS; i++) {
+            this.segments[i] = new Segment(segmentLimit);
+        }
+    }
+
+    public static long key(int player, int node) {
+        return ((long) player << 32) | (node & 0xFFFFFFFFL);
+    }
+
+    public static int player(long key) {
+        return (int) (key >>> 32);
+    }
+
+    public static int node(long key) {
+        return (int) key;
+    }
+
+    private Segment segmentFor(long key) {
+        return this.segments[(int) ((key * 0xC2B2AE3D27D4EB4FL) >>> 60)];
+    }
+
+    /**
+     * Looks up a decision, counting it as a hit or a miss.
+     *
+     * @param key
+     * @return Boolean, null when nothing is cached.
+     */
+    public Boolean lookup(long key) {
+        return this.segmentFor(key).lookup(key, true);
+    }
+
+    /**
+     * Looks up a decision without touching the statistics.
+     *
+     * @param key
+     * @return Boolean, null when nothing is cached.
+     */
+    public Boolean get(long key) {
+        return this.segmentFor(key).lookup(key, false);
+    }
+
+    /**
+     * Grabs the stamp to hand to put() once a decision has been computed.
+     *
+     * @return long
+     */
+    public long getStamp() {
+        return this.stamp.get();
+    }
+
+    /**
+     * Caches a decision unless the cache was invalidated or cleared since
+     * the stamp was taken.
+     *
+     * @param key
+     * @param allowed
+     * @param stamp
+     */
+    public void put(long key, boolean allowed, long stamp) {
+        this.segmentFor(key).put(key, allowed, this.stamp, stamp);
+    }
+
+    public void put(long key, boolean allowed) {
+        this.segmentFor(key).put(key, allowed, null, 0);
+    }
+
+    public void remove(long key) {
+        this.segmentFor(key).remove(key);
+    }
+
+    /**
+     * Drops every decision the filter matches.
+     *
+     * @param filter
+     * @return int, number of decisions dropped.
+     */
+    public int invalidate(Filter filter) {
+        this.stamp.incrementAndGet();
+
+        int count = 0;
+
+        for (Segment segment : this.segments) {
+            count += segment.invalidate(filter);
+        }
+
+        return count;
+    }
+
+    public void clear() {
+        this.stamp.incrementAndGet();
+
+        for (Segment segment : this.segments) {
+            segment.clear();
+        }
+    }
+
+    public int size() {
+        int size = 0;
+
+        for (Segment segment : this.segments) {
+            size += segment.size;
+        }
+
+        return size;
+    }
+
+    /**
+     * Copies every cached decision into a map, for callers that want to look
+     * at the whole cache.
+     *
+     * @param target
+     */
+    public void copyTo(Map<Long, Boolean> target) {
+        for (Segment segment : this.segments) {
+            segment.copyTo(target);
+        }
+    }
+
+    /**
+     * Gathers the player and node ids of every cached decision.
+     *
+     * @param players
+     * @param nodes
+     */
+    public void collectIds(Set<Integer> players, Set<Integer> nodes) {
+        for (Segment segment : this.segments) {
+            segment.collectIds(players, nodes);
+        }
+    }
+
+    public int getLimit() {
+        return this.limit;
+    }
+
+    public long getHits() {
+        long hits = 0;
+
+        for (Segment segment : this.segments) {
+            hits += segment.hits;
+        }
+
+        return hits;
+    }
+
+    public long getMisses() {
+        long misses = 0;
+
+        for (Segment segment : this.segments) {
+            misses += segment.misses;
+        }
+
+        return misses;
+    }
+
+    public long getEvictions() {
+        long evictions = 0;
+
+        for (Segment segment : this.segments) {
+            evictions += segment.evictions;
+        }
+
+        return evictions;
+    }
+
+    public String getStatistics() {
+        return this.size() + "/" + (this.limit > 0 ? String.valueOf(this.limit) : "unlimited") + " entries, "
+                + this.getHits() + " hits, " + this.getMisses() + " misses, " + this.getEvictions() + " evictions";
+    }
+
+    /**
+     * Selects decisions by player and node id.
+     */
+    public interface Filter {
+        boolean matches(int player, int node);
+    }
+
+    /**
+     * One lock's worth of the cache.
+     */
+    private static final class Segment {
+        private static final int INITIAL_CAPACITY = 16;
+
+        private static final byte USED = 1;
+        private static final byte ALLOWED = 2;
+        private static final byte REFERENCED = 4;
+
+        private final int limit;
+        private long[] keys;
+        private byte[] states;
+        private int shift;
+        private int hand = 0;
+
+        private volatile int size = 0;
+        private volatile long hits = 0;
+        private volatile long misses = 0;
+        private volatile long evictions = 0;
+
+        private Segment(int limit) {
+            this.limit = limit;
+            this.allocate(INITIAL_CAPACITY);
+        }
+
+        private void allocate(int capacity) {
+            this.keys = new long[capacity];
+            this.states = new byte[capacity];
+            this.shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        }
+
+        private int slot(long key) {
+            return (int) ((key * 0x9E3779B97F4A7C15L) >>> this.shift);
+        }
+
+        private int find(long key) {
+            int mask = this.keys.length - 1;
+
+            for (int i = this.slot(key); this.states[i] != 0; i = (i + 1) & mask) {
+                if (this.keys[i] == key) {
+                    return i;
+                }
+            }
+
+            return -1;
+        }
+
+        private synchronized Boolean lookup(long key, boolean count) {
+            int i = this.find(key);
+
+            if (i < 0) {
+                if (count) {
+                    this.misses++;
+                }
+
+                return null;
+            }
+
+            if (count) {
+                this.hits++;
+                this.states[i] |= REFERENCED;
+            }
+
+            return ((this.states[i] & ALLOWED) != 0) ? Boolean.TRUE : Boolean.FALSE;
+        }
+
+        private synchronized void put(long key, boolean allowed, AtomicLong current, long stamp) {
+            if (current != null && current.get() != stamp) {
+                return;
+            }
+
+            int i = this.find(key);
+
+            if (i >= 0) {
+                this.states[i] = (byte) ((this.states[i] & ~ALLOWED) | (allowed ? ALLOWED : 0));
+                return;
+            }
+
+            if (this.limit > 0 && this.size >= this.limit) {
+                this.evict();
+            }
+
+            if ((this.size + 1) * 2 > this.keys.length) {
+                this.grow();
+            }
+
+            int mask = this.keys.length - 1;
+            i = this.slot(key);
+
+            while (this.states[i] != 0) {
+                i = (i + 1) & mask;
+            }
+
+            this.keys[i] = key;
+            this.states[i] = (byte) (USED | (allowed ? ALLOWED : 0));
+            this.size++;
+        }
+
+        private synchronized void remove(long key) {
+            int i = this.find(key);
+
+            if (i >= 0) {
+                this.delete(i);
+            }
+        }
+
+        private synchronized int invalidate(Filter filter) {
+            long[] matched = new long[this.size];
+            int count = 0;
+
+            for (int i = 0; i < this.keys.length; i++) {
+                if (this.states[i] != 0 && filter.matches(player(this.keys[i]), node(this.keys[i]))) {
+                    matched[count++] = this.keys[i];
+                }
+            }
+
+            // Removing shifts entries around, so only start once the scan is over.
+            for (int i = 0; i < count; i++) {
+                this.delete(this.find(matched[i]));
+            }
+
+            return count;
+        }
+
+        private synchronized void clear() {
+            this.allocate(INITIAL_CAPACITY);
+            this.size = 0;
+            this.hand = 0;
+        }
+
+        private synchronized void copyTo(Map<Long, Boolean> target) {
+            for (int i = 0; i < this.keys.length; i++) {
+                if (this.states[i] != 0) {
+                    target.put(this.keys[i], (this.states[i] & ALLOWED) != 0);
+                }
+            }
+        }
+
+        private synchronized void collectIds(Set<Integer> players, Set<Integer> nodes) {
+            for (int i = 0; i < this.keys.length; i++) {
+                if (this.states[i] != 0) {
+                    players.add(player(this.keys[i]));
+                    nodes.add(node(this.keys[i]));
+                }
+            }
+        }
+
+        private void evict() {
+            int mask = this.keys.length - 1;
+
+            while (true) {
+                this.hand = (this.hand + 1) & mask;
+                byte state = this.states[this.hand];
+
+                if (state == 0) {
+                    continue;
+                }
+
+                if ((state & REFERENCED) != 0) {
+                    this.states[this.hand] = (byte) (state & ~REFERENCED);
+                    continue;
+                }
+
+                this.delete(this.hand);
+                this.evictions++;
+                return;
+            }
+        }
+
+        private void delete(int i) {
+            int mask = this.keys.length - 1;
+            int j = i;
+
+            // Shift the rest of the probe run back so lookups never stop short.
+            while (true) {
+                j = (j + 1) & mask;
+
+                if (this.states[j] == 0) {
+                    break;
+                }
+
+                int home = this.slot(this.keys[j]);
+
+                if ((i <= j) ? (i < home && home <= j) : (i < home || home <= j)) {
+                    continue;
+                }
+
+                this.keys[i] = this.keys[j];
+                this.states[i] = this.states[j];
+                i = j;
+            }
+
+            this.keys[i] = 0;
+            this.states[i] = 0;
+            this.size--;
+        }
+
+        private void grow() {
+            long[] oldKeys = this.keys;
+            byte[] oldStates = this.states;
+
+            this.allocate(oldKeys.length * 2);
+            int mask = this.keys.length - 1;
+
+            for (int k = 0; k < oldKeys.length; k++) {
+                if (oldStates[k] != 0) {
+                    int i = this.slot(oldKeys[k]);
+
+                    while (this.states[i] != 0) {
+                        i = (i + 1) & mask;
+                    }
+
+                    this.keys[i] = oldKeys[k];
+                    this.states[i] = oldStates[k];
+                }
+            }
+        }
+    }
+}
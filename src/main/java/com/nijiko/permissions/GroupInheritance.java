@@ -0,0 +1,215 @@
+package com.nijiko.permissions;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Permissions 2.x
+ * Copyright (C) 2011  Matt 'The Yeti' Burnett <admin@theyeticave.net>
+ * Original Credit & Copyright (C) 2010 Nijikokun <nijikokun@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Permissions Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Permissions Public License for more details.
+ *
+ * You should have received a copy of the GNU Permissions Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Inheritance closure of every group in a world.
+ * <br /><br />
+ * Groups are resolved once, parents before children, so each group's
+ * effective nodes are its own nodes or'd with the already resolved nodes of
+ * its parents. Inheritance cycles are reported and the edge closing the cycle
+ * is ignored. The resolved sets and lists are read-only.
+ *
+ * @author TheYeti
+ */
+final class GroupInheritance {
+
+    private static final Logger log = Logger.getLogger("Minecraft");
+
+    private static final int VISITING = 1;
+    private static final int RESOLVED = 2;
+
+    private final String world;
+    private final Map<String, NodeSet> groups;
+    private final Map<String, Set<String>> inheritance;
+
+    private final Map<String, Integer> state = new HashMap<String, Integer>();
+    private final LinkedList<String> path = new LinkedList<String>();
+    private final Map<String, BitSet> bits = new HashMap<String, BitSet>();
+    private List<String> order = new ArrayList<String>();
+    private Map<String, NodeSet> effective = new HashMap<String, NodeSet>();
+    private Map<String, List<String>> ancestors = new HashMap<String, List<String>>();
+
+    /**
+     * Resolves the inheritance of a world.
+     *
+     * @param world
+     * @param groups - Lowercased group name to its own node ids.
+     * @param inheritance - Lowercased group name to the groups it inherits.
+     */
+    GroupInheritance(String world, Map<String, NodeSet> groups, Map<String, Set<String>> inheritance) {
+        this.world = world;
+        this.groups = groups;
+        this.inheritance = inheritance;
+
+        for (String group : groups.keySet()) {
+            if (!this.state.containsKey(group)) {
+                this.visit(group);
+            }
+        }
+
+        this.bits.clear();
+        this.effective = SharedMap.of(this.effective);
+    }
+
+    private GroupInheritance(GroupInheritance previous, Map<String, NodeSet> groups, SharedMap<NodeSet> effective) {
+        this.world = previous.world;
+        this.groups = groups;
+        this.inheritance = previous.inheritance;
+        this.order = previous.order;
+        this.ancestors = previous.ancestors;
+        this.effective = effective;
+    }
+
+    /**
+     * Resolves a world again after the own nodes of one existing group
+     * changed, its inheritance staying the same. Only that group and the
+     * groups inheriting it are resolved again, everything else is shared.
+     *
+     * @param groups - Lowercased group name to its own node ids.
+     * @param changed - Lowercased name of the changed group.
+     * @return GroupInheritance
+     */
+    GroupInheritance with(Map<String, NodeSet> groups, String changed) {
+        if (!this.ancestors.containsKey(changed)) {
+            return new GroupInheritance(this.world, groups, this.inheritance);
+        }
+
+        SharedMap<NodeSet> effective = (SharedMap<NodeSet>) this.effective;
+
+        for (String group : this.order) {
+            List<String> Ancestors = this.ancestors.get(group);
+
+            if (!group.equals(changed) && !Ancestors.contains(changed)) {
+                continue;
+            }
+
+            // Ancestors already leave out the edges closing a cycle, so their own nodes are all there is to add.
+            BitSet Permissions = groups.get(group).toBitSet();
+
+            for (String ancestor : Ancestors) {
+                groups.get(ancestor).addTo(Permissions);
+            }
+
+            effective = effective.with(group, NodeSet.of(Permissions));
+        }
+
+        return new GroupInheritance(this, groups, effective);
+    }
+
+    private void visit(String group) {
+        this.state.put(group, VISITING);
+        this.path.addLast(group);
+
+        Set<String> Parents = new LinkedHashSet<String>();
+        Set<String> Inherited = this.inheritance.get(group);
+
+        if (Inherited != null) {
+            for (String parent : Inherited) {
+                parent = parent.toLowerCase();
+
+                if (!this.groups.containsKey(parent)) {
+                    continue;
+                }
+
+                Integer seen = this.state.get(parent);
+
+                if (seen == null) {
+                    this.visit(parent);
+                } else if (seen == VISITING) {
+                    this.reportCycle(group, parent);
+                    continue;
+                }
+
+                Parents.add(parent);
+            }
+        }
+
+        BitSet Permissions = this.groups.get(group).toBitSet();
+        Set<String> Ancestors = new LinkedHashSet<String>();
+
+        for (String parent : Parents) {
+            Permissions.or(this.bits.get(parent));
+            Ancestors.addAll(this.ancestors.get(parent));
+            Ancestors.add(parent);
+        }
+
+        this.bits.put(group, Permissions);
+        this.effective.put(group, NodeSet.of(Permissions));
+        this.ancestors.put(group, Collections.unmodifiableList(new ArrayList<String>(Ancestors)));
+        this.order.add(group);
+
+        this.path.removeLast();
+        this.state.put(group, RESOLVED);
+    }
+
+    private void reportCycle(String group, String parent) {
+        StringBuilder cycle = new StringBuilder();
+
+        for (String step : this.path.subList(this.path.indexOf(parent), this.path.size())) {
+            cycle.append(step).append(" -> ");
+        }
+
+        cycle.append(parent);
+        log.severe("[Permissions] Inheritance cycle in world " + this.world + ": " + cycle + ". Ignoring " + group + " inheriting " + parent + ".");
+    }
+
+    /**
+     * Every group of the world, parents always before the groups inheriting them.
+     *
+     * @return List
+     */
+    List<String> getOrder() {
+        return Collections.unmodifiableList(this.order);
+    }
+
+    /**
+     * Own and inherited nodes of a group.
+     *
+     * @param group - Lowercased group name.
+     * @return NodeSet, empty when the group does not exist.
+     */
+    NodeSet getPermissions(String group) {
+        NodeSet Permissions = this.effective.get(group);
+        return (Permissions == null) ? NodeSet.EMPTY : Permissions;
+    }
+
+    /**
+     * Every group a group inherits from, directly or not, parents first.
+     *
+     * @param group - Lowercased group name.
+     * @return List, empty when the group does not exist or inherits nothing.
+     */
+    List<String> getAncestors(String group) {
+        List<String> Ancestors = this.ancestors.get(group);
+        return (Ancestors == null) ? Collections.<String>emptyList() : Ancestors;
+    }
+}
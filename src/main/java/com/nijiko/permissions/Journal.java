@@ -0,0 +1,568 @@
+package com.nijiko.permissions;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import org.bukkit.util.config.Configuration;
+
+/**
+ * Permissions 2.x
+ * Copyright (C) 2011  Matt 'The Yeti' Burnett <admin@theyeticave.net>
+ * Original Credit & Copyright (C) 2010 Nijikokun <nijikokun@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Permissions Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Permissions Public License for more details.
+ *
+ * You should have received a copy of the GNU Permissions Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Append-only log of the edits made to a world since its file was last
+ * saved.
+ * <br /><br />
+ * Every edit is appended as a small record, so an edit costs a write the
+ * size of the edit rather than of the whole file. Each record carries its
+ * length and a CRC32 of its contents, so a record cut short or damaged by
+ * a crash is recognized as such. Replaying stops at the first one, and the
+ * journal is cut back to the last whole record before anything is
+ * appended again. Records are left to the OS to write out, unless syncing
+ * is turned on, which waits for each to reach the disk.
+ * <br /><br />
+ * Loading a world replays its journal over the file. Saving the file
+ * rotates the journal to world.journal.old first and deletes that once the
+ * file is written. Records only set or clear one entry each, so replaying
+ * records the file already holds changes nothing.
+ *
+ * @author TheYeti
+ */
+final class Journal {
+
+    private static final Logger log = Logger.getLogger("Minecraft");
+
+    private static final int MAGIC = 0x504d4a32;
+    private static final int HEADER = 4;
+    private static final int RECORD_HEADER = 8;
+    private static final int MAX_RECORD = 1 << 20;
+
+    static final byte ADD_USER_PERMISSION = PermissionStorage.ADD_USER_PERMISSION;
+    static final byte REMOVE_USER_PERMISSION = PermissionStorage.REMOVE_USER_PERMISSION;
+    static final byte ADD_GROUP_PERMISSION = PermissionStorage.ADD_GROUP_PERMISSION;
+    static final byte REMOVE_GROUP_PERMISSION = PermissionStorage.REMOVE_GROUP_PERMISSION;
+    static final byte SET_USER_INFO = PermissionStorage.SET_USER_INFO;
+    static final byte REMOVE_USER_INFO = PermissionStorage.REMOVE_USER_INFO;
+    static final byte SET_GROUP_INFO = PermissionStorage.SET_GROUP_INFO;
+    static final byte REMOVE_GROUP_INFO = PermissionStorage.REMOVE_GROUP_INFO;
+
+    private static final byte VALUE_STRING = 0;
+    private static final byte VALUE_BOOLEAN = 1;
+    private static final byte VALUE_INTEGER = 2;
+    private static final byte VALUE_LONG = 3;
+    private static final byte VALUE_DOUBLE = 4;
+    private static final byte VALUE_NULL = 5;
+    private static final byte VALUE_LIST = 6;
+    private static final byte VALUE_MAP = 7;
+
+    private final File file;
+    private final File old;
+    private FileOutputStream stream = null;
+    private DataOutputStream output = null;
+    private long size = 0;
+
+    /**
+     * @param source - World file the journal belongs to.
+     */
+    Journal(File source) {
+        this.file = fileFor(source, ".journal");
+        this.old = fileFor(source, ".journal.old");
+    }
+
+    private static File fileFor(File source, String extension) {
+        String name = source.getName();
+
+        if (name.toLowerCase().endsWith(".yml")) {
+            name = name.substring(0, name.length() - 4);
+        }
+
+        return new File(source.getParentFile(), name + extension);
+    }
+
+    /**
+     * Checks whether a world file has edits waiting in its journal.
+     *
+     * @param source
+     * @return boolean
+     */
+    static boolean exists(File source) {
+        return fileFor(source, ".journal").length() > 0 || fileFor(source, ".journal.old").length() > 0;
+    }
+
+    /**
+     * Appends an edit. The caller holds the world's lock.
+     *
+     * @param type - One of the record types above.
+     * @param name - User or group, as given.
+     * @param node - Permission or info node.
+     * @param value - Info value, only for SET_USER_INFO and SET_GROUP_INFO.
+     * @param sync - Whether to wait for the record to reach the disk.
+     * @throws IOException also when the value is not a scalar, list or map,
+     *         in which case nothing is written.
+     */
+    void append(byte type, String name, String node, Object value, boolean sync) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(buffer);
+
+        record.writeByte(type);
+        record.writeUTF(name);
+        record.writeUTF(node);
+
+        if (type == SET_USER_INFO || type == SET_GROUP_INFO) {
+            writeValue(record, value);
+        }
+
+        record.flush();
+
+        byte[] payload = buffer.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        if (this.output == null) {
+            this.open();
+        }
+
+        try {
+            this.output.writeInt(payload.length);
+            this.output.writeInt((int) crc.getValue());
+            this.output.write(payload);
+            this.output.flush();
+
+            if (sync) {
+                this.stream.getFD().sync();
+            }
+        } catch (IOException e) {
+            // Whatever part of the record made it out is cut off by the next open.
+            this.close();
+            throw e;
+        }
+
+        this.size += RECORD_HEADER + payload.length;
+    }
+
+    private static void writeValue(DataOutputStream output, Object value) throws IOException {
+        if (value == null) {
+            output.writeByte(VALUE_NULL);
+        } else if (value instanceof Boolean) {
+            output.writeByte(VALUE_BOOLEAN);
+            output.writeBoolean((Boolean) value);
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            output.writeByte(VALUE_INTEGER);
+            output.writeInt(((Number) value).intValue());
+        } else if (value instanceof Long) {
+            output.writeByte(VALUE_LONG);
+            output.writeLong((Long) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            output.writeByte(VALUE_DOUBLE);
+            output.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof String) {
+            output.writeByte(VALUE_STRING);
+            output.writeUTF((String) value);
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            output.writeByte(VALUE_LIST);
+            output.writeInt(list.size());
+
+            for (Object item : list) {
+                writeValue(output, item);
+            }
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            output.writeByte(VALUE_MAP);
+            output.writeInt(map.size());
+
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeValue(output, entry.getKey());
+                writeValue(output, entry.getValue());
+            }
+        } else {
+            throw new IOException(value.getClass().getName() + " values cannot be journaled.");
+        }
+    }
+
+    /**
+     * Grabs the size of the journal, including a rotated one not yet
+     * removed.
+     *
+     * @return long, bytes.
+     */
+    long size() {
+        return this.size + this.old.length();
+    }
+
+    /**
+     * Moves the records written so far aside, for a save of the file that
+     * holds them. The caller holds the world's lock.
+     *
+     * @throws IOException
+     */
+    void rotate() throws IOException {
+        this.close();
+
+        if (!this.file.exists()) {
+            return;
+        }
+
+        long end = scan(this.file, null, null);
+
+        if (end <= HEADER) {
+            this.file.delete();
+            return;
+        }
+
+        long oldEnd = this.old.exists() ? scan(this.old, null, null) : -1;
+
+        if (oldEnd <= HEADER) {
+            truncate(this.file, end);
+            this.old.delete();
+
+            if (this.file.renameTo(this.old)) {
+                return;
+            }
+
+            throw new IOException("Could not move " + this.file.getName() + " aside.");
+        }
+
+        // A save before this one failed, keep both sets of whole records in order.
+        truncate(this.old, oldEnd);
+
+        InputStream input = new FileInputStream(this.file);
+        FileOutputStream output = new FileOutputStream(this.old, true);
+
+        try {
+            byte[] buffer = new byte[8192];
+            long remaining = end - HEADER;
+
+            // Skip the header of the newer journal.
+            new DataInputStream(input).readInt();
+
+            while (remaining > 0) {
+                int read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+
+                if (read < 0) {
+                    throw new EOFException();
+                }
+
+                output.write(buffer, 0, read);
+                remaining -= read;
+            }
+
+            output.getFD().sync();
+        } finally {
+            input.close();
+            output.close();
+        }
+
+        if (!this.file.delete()) {
+            throw new IOException("Could not remove " + this.file.getName() + ".");
+        }
+    }
+
+    /**
+     * Drops the rotated records once the file holding them is saved.
+     */
+    void commit() {
+        this.old.delete();
+    }
+
+    /**
+     * Closes the journal. It is opened again by the next append.
+     */
+    void close() {
+        if (this.output != null) {
+            try {
+                this.output.close();
+            } catch (IOException e) {
+            }
+
+            this.output = null;
+            this.stream = null;
+        }
+
+        this.size = 0;
+    }
+
+    /**
+     * Opens the journal for appending, first cutting off anything after its
+     * last whole record so new records never follow a partial one.
+     */
+    private void open() throws IOException {
+        long end = scan(this.file, null, null);
+
+        if (end < 0) {
+            log.warning("[Permissions] " + this.file.getName() + " is not a journal, starting it over.");
+            end = 0;
+        }
+
+        if (end < this.file.length()) {
+            if (end > 0) {
+                log.warning("[Permissions] Cutting " + (this.file.length() - end) + " bytes of incomplete records off " + this.file.getName() + ".");
+            }
+
+            truncate(this.file, end);
+        }
+
+        this.stream = new FileOutputStream(this.file, true);
+        this.output = new DataOutputStream(new BufferedOutputStream(this.stream));
+        this.size = end;
+
+        if (end == 0) {
+            this.output.writeInt(MAGIC);
+            this.output.flush();
+            this.size = HEADER;
+        }
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile access = new RandomAccessFile(file, "rw");
+
+        try {
+            access.setLength(length);
+        } finally {
+            access.close();
+        }
+    }
+
+    /**
+     * Replays the journal of a world file onto its loaded configuration,
+     * the rotated records first.
+     *
+     * @param source - World file.
+     * @param config
+     * @return int, the number of records replayed.
+     */
+    static int replay(File source, Configuration config) {
+        int[] count = new int[1];
+
+        scan(fileFor(source, ".journal.old"), config, count);
+        scan(fileFor(source, ".journal"), config, count);
+        return count[0];
+    }
+
+    /**
+     * Reads a journal up to its last whole record.
+     *
+     * @param file
+     * @param config - Receives the records, null to only look for the end.
+     * @param count - Counts the records applied, null when config is.
+     * @return long, offset just past the last whole record. 0 for a missing
+     *         or empty file, -1 when the file is not a journal.
+     */
+    private static long scan(File file, Configuration config, int[] count) {
+        if (file.length() == 0) {
+            return 0;
+        }
+
+        DataInputStream input = null;
+        long end = -1;
+
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            if (input.readInt() != MAGIC) {
+                if (config != null) {
+                    log.severe("[Permissions] " + file.getName() + " is not a journal, ignoring it.");
+                }
+
+                return -1;
+            }
+
+            end = HEADER;
+            CRC32 crc = new CRC32();
+
+            while (true) {
+                int length = input.readInt();
+                int checksum = input.readInt();
+
+                if (length < 0 || length > MAX_RECORD) {
+                    break;
+                }
+
+                byte[] payload = new byte[length];
+                input.readFully(payload);
+
+                crc.reset();
+                crc.update(payload);
+
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+
+                if (config != null) {
+                    apply(config, payload);
+                    count[0]++;
+                }
+
+                end += RECORD_HEADER + length;
+            }
+        } catch (EOFException e) {
+            // Ran into the end of the file, possibly within a record a crash cut short.
+        } catch (IOException e) {
+            log.severe("[Permissions] Could not read " + file.getName() + ": " + e.getMessage());
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        if (config != null && end >= 0 && end < file.length()) {
+            // Such records never took effect, nor did anything the journal held after them.
+            log.warning("[Permissions] Ignoring " + (file.length() - end) + " bytes of incomplete or damaged records at the end of " + file.getName() + ".");
+        }
+
+        return end;
+    }
+
+    private static void apply(Configuration config, byte[] payload) throws IOException {
+        DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+
+        try {
+            byte type = record.readByte();
+            String name = record.readUTF();
+            String node = record.readUTF();
+            Object value = null;
+
+            if (type == SET_USER_INFO || type == SET_GROUP_INFO) {
+                value = readValue(record);
+            }
+
+            apply(config, type, name, node, value);
+        } catch (EOFException e) {
+            // Not the end of the journal, the record itself is shorter than it claims.
+            throw new IOException("Damaged record.");
+        }
+    }
+
+    private static Object readValue(DataInputStream input) throws IOException {
+        switch (input.readByte()) {
+            case VALUE_NULL:
+                return null;
+            case VALUE_BOOLEAN:
+                return input.readBoolean();
+            case VALUE_INTEGER:
+                return input.readInt();
+            case VALUE_LONG:
+                return input.readLong();
+            case VALUE_DOUBLE:
+                return input.readDouble();
+            case VALUE_STRING:
+                return input.readUTF();
+            case VALUE_LIST: {
+                int size = input.readInt();
+                List<Object> list = new ArrayList<Object>();
+
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(input));
+                }
+
+                return list;
+            }
+            case VALUE_MAP: {
+                int size = input.readInt();
+                Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+
+                for (int i = 0; i < size; i++) {
+                    map.put(readValue(input), readValue(input));
+                }
+
+                return map;
+            }
+            default:
+                throw new IOException("Unknown value type.");
+        }
+    }
+
+    /**
+     * Applies one edit to a configuration, the same way the handler does.
+     *
+     * @param config
+     * @param type
+     * @param name
+     * @param node
+     * @param value
+     * @throws IOException if the record type is unknown.
+     */
+    static void apply(Configuration config, byte type, String name, String node, Object value) throws IOException {
+        switch (type) {
+            case ADD_USER_PERMISSION:
+                addPermission(config, "users." + name + ".permissions", node);
+                break;
+            case REMOVE_USER_PERMISSION:
+                removePermission(config, "users." + name + ".permissions", node);
+                break;
+            case ADD_GROUP_PERMISSION:
+                addPermission(config, "groups." + name + ".permissions", node);
+                break;
+            case REMOVE_GROUP_PERMISSION:
+                removePermission(config, "groups." + name + ".permissions", node);
+                break;
+            case SET_USER_INFO:
+                config.setProperty("users." + name + ".info." + node, value);
+                break;
+            case REMOVE_USER_INFO:
+                config.removeProperty("users." + name + ".info." + node);
+                break;
+            case SET_GROUP_INFO:
+                config.setProperty("groups." + name + ".info." + node, value);
+                break;
+            case REMOVE_GROUP_INFO:
+                config.removeProperty("groups." + name + ".info." + node);
+                break;
+            default:
+                throw new IOException("Unknown record type " + type + ".");
+        }
+    }
+
+    private static void addPermission(Configuration config, String path, String node) {
+        List<String> list = config.getStringList(path, new LinkedList<String>());
+
+        if (!list.contains(node)) {
+            list.add(node);
+        }
+
+        config.setProperty(path, list);
+    }
+
+    private static void removePermission(Configuration config, String path, String node) {
+        List<String> list = config.getStringList(path, new LinkedList<String>());
+        list.removeAll(Collections.singleton(node));
+        config.setProperty(path, list);
+    }
+}
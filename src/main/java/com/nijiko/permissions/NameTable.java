@@ -0,0 +1,242 @@
+package com.nijiko.permissions;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Permissions 2.x
+ * Copyright (C) 2011  Matt 'The Yeti' Burnett <admin@theyeticave.net>
+ * Original Credit & Copyright (C) 2010 Nijikokun <nijikokun@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Permissions Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Permissions Public License for more details.
+ *
+ * You should have received a copy of the GNU Permissions Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Gives player names or requested nodes a stable int id.
+ * <br /><br />
+ * Ids are what the {@link DecisionCache} keys are made of. A case-insensitive
+ * table remembers every spelling it has been asked for, so looking up a name
+ * that has been seen before never lowercases or allocates.
+ * <br /><br />
+ * The table is bounded. Once it holds more names than its limit, the next
+ * new name first runs the reclaimer, which hands {@link #retain(Set, int)}
+ * the ids still in use, and every other name is dropped. Dropped ids are
+ * never handed out again, so a caller still holding one only misses the
+ * cache, it never reads another name's decisions. If most names are still
+ * in use the limit is raised to twice their number until the next reclaim.
+ * <br /><br />
+ * Lookups are lock-free, only handing out a new id is synchronized.
+ *
+ * @author TheYeti
+ */
+final class NameTable {
+
+    private final boolean ignoreCase;
+    private final Map<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+    private final Map<Integer, String> names = new ConcurrentHashMap<Integer, String>();
+    private final Set<Integer> pinned = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    private final AtomicBoolean reclaiming = new AtomicBoolean(false);
+    private int next = 0;
+    private volatile int limit = 100000;
+    private volatile int threshold = 100000;
+    private volatile Runnable reclaimer = null;
+
+    NameTable(boolean ignoreCase) {
+        this.ignoreCase = ignoreCase;
+    }
+
+    /**
+     * Sets how many names the table holds before it reclaims unused ones.
+     *
+     * @param limit - 0 or less to never reclaim.
+     */
+    void setLimit(int limit) {
+        this.limit = (limit > 0) ? limit : Integer.MAX_VALUE;
+        this.threshold = this.limit;
+    }
+
+    /**
+     * Sets what runs when the table is over its limit, expected to call
+     * {@link #retain(Set, int)}.
+     *
+     * @param reclaimer
+     */
+    void setReclaimer(Runnable reclaimer) {
+        this.reclaimer = reclaimer;
+    }
+
+    /**
+     * Grabs the id of a name, giving it the next free id if it is new.
+     *
+     * @param name
+     * @return int
+     */
+    int id(String name) {
+        Integer id = this.ids.get(name);
+
+        if (id != null) {
+            return id;
+        }
+
+        if (this.names.size() >= this.threshold) {
+            this.reclaim();
+        }
+
+        return this.add(name);
+    }
+
+    /**
+     * Keeps the id of a name for good, for ids handed out to callers that
+     * keep them, such as a {@link PermissionNode}.
+     *
+     * @param name
+     * @return int
+     */
+    int pin(String name) {
+        while (true) {
+            int id = this.id(name);
+            this.pinned.add(id);
+
+            // A reclaim may have dropped the id before it was pinned.
+            if (this.names.containsKey(id)) {
+                return id;
+            }
+
+            this.pinned.remove(id);
+        }
+    }
+
+    private void reclaim() {
+        Runnable reclaimer = this.reclaimer;
+
+        if (reclaimer == null || !this.reclaiming.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            reclaimer.run();
+        } finally {
+            this.reclaiming.set(false);
+        }
+    }
+
+    private synchronized int add(String name) {
+        String canonical = this.ignoreCase ? name.toLowerCase() : name;
+        Integer id = this.ids.get(canonical);
+
+        if (id == null) {
+            id = this.next++;
+            this.names.put(id, canonical);
+            this.ids.put(canonical, id);
+        }
+
+        if (!canonical.equals(name)) {
+            this.ids.put(name, id);
+        }
+
+        return id;
+    }
+
+    /**
+     * Grabs the id the next new name will get. Every id below it has been
+     * handed out already.
+     *
+     * @return int
+     */
+    synchronized int mark() {
+        return this.next;
+    }
+
+    /**
+     * Drops every name handed out before the mark whose id is neither in use
+     * nor pinned.
+     *
+     * @param used - Ids still in use.
+     * @param mark - See {@link #mark()}, names added since are kept.
+     * @return int, number of names dropped.
+     */
+    synchronized int retain(Set<Integer> used, int mark) {
+        int dropped = 0;
+
+        for (Iterator<Map.Entry<Integer, String>> it = this.names.entrySet().iterator(); it.hasNext(); ) {
+            int id = it.next().getKey();
+
+            if (id < mark && !used.contains(id) && !this.pinned.contains(id)) {
+                it.remove();
+                dropped++;
+            }
+        }
+
+        for (Iterator<Integer> it = this.ids.values().iterator(); it.hasNext(); ) {
+            if (!this.names.containsKey(it.next())) {
+                it.remove();
+            }
+        }
+
+        this.threshold = Math.max(this.limit, this.names.size() * 2);
+        return dropped;
+    }
+
+    /**
+     * Grabs the id of a name without adding it.
+     *
+     * @param name
+     * @return int, -1 when the name has never been seen or was dropped.
+     */
+    int find(String name) {
+        Integer id = this.ids.get(name);
+
+        if (id == null && this.ignoreCase) {
+            id = this.ids.get(name.toLowerCase());
+        }
+
+        return (id == null) ? -1 : id;
+    }
+
+    /**
+     * Grabs the name behind an id, lowercased for case-insensitive tables.
+     *
+     * @param id
+     * @return String, null when the id was dropped.
+     */
+    String getName(int id) {
+        return this.names.get(id);
+    }
+
+    /**
+     * Grabs the name behind an id handed out for a name, falling back on
+     * the name itself if the id was dropped since.
+     *
+     * @param id
+     * @param name - Name the id was handed out for.
+     * @return String, lowercased for case-insensitive tables.
+     */
+    String getName(int id, String name) {
+        String canonical = this.names.get(id);
+
+        if (canonical != null) {
+            return canonical;
+        }
+
+        return this.ignoreCase ? name.toLowerCase() : name;
+    }
+
+    int size() {
+        return this.names.size();
+    }
+}
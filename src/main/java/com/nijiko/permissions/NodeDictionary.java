@@ -0,0 +1,453 @@
+package com.nijiko.permissions;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Permissions 2.x
+ * Copyright (C) 2011  Matt 'The Yeti' Burnett <admin@theyeticave.net>
+ * Original Credit & Copyright (C) 2010 Nijikokun <nijikokun@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Permissions Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Permissions Public License for more details.
+ *
+ * You should have received a copy of the GNU Permissions Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Dictionary of every permission node used in a world.
+ * <br /><br />
+ * Each distinct node gets a dense id, so that groups and users only need to
+ * keep a {@link NodeSet} of ids. The ids are also stored in a trie, one
+ * segment per level, with exact, globalized (node.*) and exempt (-node) ids
+ * kept on the level they end on. A single walk over the requested node
+ * answers all three checks without splitting it or building any
+ * intermediate strings.
+ *
+ * @author TheYeti
+ */
+public final class NodeDictionary {
+
+    private final Level root = new Level();
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+    private final List<String> nodes = new ArrayList<String>();
+    private int all = -1;
+
+    /**
+     * Grabs the id of a node, giving it the next free id if it is new.
+     *
+     * @param node
+     * @return int
+     */
+    public int intern(String node) {
+        Integer id = this.ids.get(node);
+
+        if (id != null) {
+            return id;
+        }
+
+        int next = this.nodes.size();
+        this.nodes.add(node);
+        this.ids.put(node, next);
+
+        if (node.startsWith("-")) {
+            this.walk(node, 1, node.length()).negated = next;
+        } else if (node.equals("*")) {
+            this.all = next;
+        } else if (node.endsWith(".*")) {
+            this.walk(node, 0, node.length() - 2).global = next;
+        } else {
+            this.walk(node, 0, node.length()).exact = next;
+        }
+
+        return next;
+    }
+
+    /**
+     * Copies the dictionary, keeping every id. A dictionary is never changed
+     * once other threads can see it, new nodes go into a copy instead.
+     *
+     * @return NodeDictionary
+     */
+    public NodeDictionary copy() {
+        NodeDictionary copy = new NodeDictionary();
+
+        for (String node : this.nodes) {
+            copy.intern(node);
+        }
+
+        return copy;
+    }
+
+    /**
+     * Grabs a dictionary that knows a node: this one when it already does,
+     * otherwise a copy with the node added.
+     *
+     * @param node
+     * @return NodeDictionary
+     */
+    public NodeDictionary with(String node) {
+        if (this.ids.containsKey(node)) {
+            return this;
+        }
+
+        NodeDictionary copy = this.copy();
+        copy.intern(node);
+        return copy;
+    }
+
+    /**
+     * Grabs a dictionary that knows every given node: this one when it
+     * already does, otherwise one copy with the new nodes added.
+     *
+     * @param nodes
+     * @return NodeDictionary
+     */
+    public NodeDictionary withAll(Collection<String> nodes) {
+        NodeDictionary copy = this;
+
+        if (nodes != null) {
+            for (String node : nodes) {
+                if (node != null && !copy.ids.containsKey(node)) {
+                    if (copy == this) {
+                        copy = this.copy();
+                    }
+
+                    copy.intern(node);
+                }
+            }
+        }
+
+        return copy;
+    }
+
+    /**
+     * Grabs the id of a node without adding it.
+     *
+     * @param node
+     * @return int, -1 when the node is unknown.
+     */
+    public int lookup(String node) {
+        Integer id = this.ids.get(node);
+        return (id == null) ? -1 : id;
+    }
+
+    public String getNode(int id) {
+        return this.nodes.get(id);
+    }
+
+    public int size() {
+        return this.nodes.size();
+    }
+
+    /**
+     * Interns a collection of nodes into a set of ids.
+     *
+     * @param nodes
+     * @return NodeSet
+     */
+    public NodeSet compile(Collection<String> nodes) {
+        BitSet bits = new BitSet();
+
+        if (nodes != null) {
+            for (String node : nodes) {
+                if (node != null) {
+                    bits.set(this.intern(node));
+                }
+            }
+        }
+
+        return NodeSet.of(bits);
+    }
+
+    /**
+     * Checks whether adding or removing a node can change the decision for a
+     * requested permission.
+     *
+     * @param node - Node as written in a group or user, e.g. "-foo.bar" or "foo.*".
+     * @param permission - Requested permission.
+     * @return boolean
+     */
+    public static boolean covers(String node, String permission) {
+        if (node.startsWith("-")) {
+            return permission.length() == node.length() - 1 && permission.regionMatches(0, node, 1, node.length() - 1);
+        }
+
+        if (node.equals("*")) {
+            return true;
+        }
+
+        if (node.endsWith(".*")) {
+            int length = node.length() - 2;
+            return permission.regionMatches(0, node, 0, length) && (permission.length() == length || permission.charAt(length) == '.');
+        }
+
+        return permission.equals(node);
+    }
+
+    private Level walk(String node, int start, int end) {
+        Level level = this.root;
+
+        while (true) {
+            int dot = node.indexOf('.', start);
+
+            if (dot < 0 || dot > end) {
+                dot = end;
+            }
+
+            level = level.put(node, start, dot);
+
+            if (dot >= end) {
+                return level;
+            }
+
+            start = dot + 1;
+        }
+    }
+
+    /**
+     * Resolves a permission node against the union of two sets.
+     * <br /><br />
+     * Exempt nodes win over everything else, then '*', the exact node and
+     * any globalized parent (node.*) grant it.
+     *
+     * @param permission
+     * @param first
+     * @param second
+     * @return boolean
+     */
+    public boolean has(String permission, NodeSet first, NodeSet second) {
+        int length = permission.length();
+        boolean granted = first.contains(this.all) || second.contains(this.all);
+
+        // Globalized nodes are only honoured for dotted permissions, and trailing dots never form a level of their own.
+        int global = -1;
+
+        if (permission.indexOf('.') >= 0) {
+            global = length;
+
+            while (global > 0 && permission.charAt(global - 1) == '.') {
+                global--;
+            }
+
+            if (global == 0) {
+                global = -1;
+            }
+        }
+
+        Level level = this.root;
+        int start = 0;
+
+        while (true) {
+            int dot = permission.indexOf('.', start);
+            int end = (dot < 0) ? length : dot;
+
+            level = level.get(permission, start, end);
+
+            if (level == null) {
+                return granted;
+            }
+
+            if (!granted && end <= global && (first.contains(level.global) || second.contains(level.global))) {
+                granted = true;
+            }
+
+            if (dot < 0) {
+                break;
+            }
+
+            start = dot + 1;
+        }
+
+        if (first.contains(level.negated) || second.contains(level.negated)) {
+            return false;
+        }
+
+        return granted || first.contains(level.exact) || second.contains(level.exact);
+    }
+
+    /**
+     * Looks up every id has() would test for a permission, so that repeated
+     * checks of it only need to test the sets.
+     *
+     * @param permission
+     * @return int[], the exempt, exact and '*' ids followed by the ids of the globalized parents. Unknown nodes are -1.
+     */
+    public int[] prepare(String permission) {
+        int length = permission.length();
+        int[] ids = new int[3 + length];
+        int count = 3;
+
+        ids[0] = -1;
+        ids[1] = -1;
+        ids[2] = this.all;
+
+        int global = -1;
+
+        if (permission.indexOf('.') >= 0) {
+            global = length;
+
+            while (global > 0 && permission.charAt(global - 1) == '.') {
+                global--;
+            }
+
+            if (global == 0) {
+                global = -1;
+            }
+        }
+
+        Level level = this.root;
+        int start = 0;
+
+        while (true) {
+            int dot = permission.indexOf('.', start);
+            int end = (dot < 0) ? length : dot;
+
+            level = level.get(permission, start, end);
+
+            if (level == null) {
+                break;
+            }
+
+            if (end <= global && level.global >= 0) {
+                ids[count++] = level.global;
+            }
+
+            if (dot < 0) {
+                ids[0] = level.negated;
+                ids[1] = level.exact;
+                break;
+            }
+
+            start = dot + 1;
+        }
+
+        int[] prepared = new int[count];
+        System.arraycopy(ids, 0, prepared, 0, count);
+        return prepared;
+    }
+
+    /**
+     * Resolves a permission prepared by prepare() against the union of two
+     * sets, exactly like has() would.
+     *
+     * @param prepared
+     * @param first
+     * @param second
+     * @return boolean
+     */
+    public static boolean has(int[] prepared, NodeSet first, NodeSet second) {
+        if (first.contains(prepared[0]) || second.contains(prepared[0])) {
+            return false;
+        }
+
+        for (int i = 1; i < prepared.length; i++) {
+            if (first.contains(prepared[i]) || second.contains(prepared[i])) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * One level of the trie.
+     * <br /><br />
+     * Children live in a small open-addressed table so that they can be
+     * looked up by a region of the requested node rather than by a substring.
+     */
+    private static final class Level {
+        private String[] keys = new String[0];
+        private Level[] children = new Level[0];
+        private int size = 0;
+
+        private int exact = -1;
+        private int global = -1;
+        private int negated = -1;
+
+        private static int hash(String node, int start, int end) {
+            int h = 0;
+
+            for (int i = start; i < end; i++) {
+                h = 31 * h + node.charAt(i);
+            }
+
+            return h ^ (h >>> 16);
+        }
+
+        private Level get(String node, int start, int end) {
+            if (this.size == 0) {
+                return null;
+            }
+
+            int length = end - start;
+            int mask = this.keys.length - 1;
+
+            for (int i = hash(node, start, end) & mask; this.keys[i] != null; i = (i + 1) & mask) {
+                String key = this.keys[i];
+
+                if (key.length() == length && key.regionMatches(0, node, start, length)) {
+                    return this.children[i];
+                }
+            }
+
+            return null;
+        }
+
+        private Level put(String node, int start, int end) {
+            Level level = this.get(node, start, end);
+
+            if (level != null) {
+                return level;
+            }
+
+            if ((this.size + 1) * 2 > this.keys.length) {
+                this.resize();
+            }
+
+            level = new Level();
+            this.insert(node.substring(start, end), level);
+            this.size++;
+            return level;
+        }
+
+        private void insert(String key, Level level) {
+            int mask = this.keys.length - 1;
+            int i = hash(key, 0, key.length()) & mask;
+
+            while (this.keys[i] != null) {
+                i = (i + 1) & mask;
+            }
+
+            this.keys[i] = key;
+            this.children[i] = level;
+        }
+
+        private void resize() {
+            String[] oldKeys = this.keys;
+            Level[] oldChildren = this.children;
+            int capacity = Math.max(4, oldKeys.length * 2);
+
+            this.keys = new String[capacity];
+            this.children = new Level[capacity];
+
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    this.insert(oldKeys[i], oldChildren[i]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.nijiko.permissions;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Permissions 2.x
+ * Copyright (C) 2011  Matt 'The Yeti' Burnett <admin@theyeticave.net>
+ * Original Credit & Copyright (C) 2010 Nijikokun <nijikokun@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Permissions Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Permissions Public License for more details.
+ *
+ * You should have received a copy of the GNU Permissions Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Read-only set of node ids from a {@link NodeDictionary}.
+ * <br /><br />
+ * Sets are kept as a plain bitset when that is smaller, and as a sorted id
+ * array otherwise, which is the usual case for users with a handful of
+ * nodes of their own.
+ *
+ * @author TheYeti
+ */
+public final class NodeSet {
+
+    public static final NodeSet EMPTY = new NodeSet(null, new int[0]);
+
+    private final long[] words;
+    private final int[] ids;
+
+    private NodeSet(long[] words, int[] ids) {
+        this.words = words;
+        this.ids = ids;
+    }
+
+    public static NodeSet of(BitSet bits) {
+        int count = bits.cardinality();
+
+        if (count == 0) {
+            return EMPTY;
+        }
+
+        int length = (bits.length() + 63) >>> 6;
+
+        if (count < length * 2) {
+            int[] ids = new int[count];
+            int i = 0;
+
+            for (int id = bits.nextSetBit(0); id >= 0; id = bits.nextSetBit(id + 1)) {
+                ids[i++] = id;
+            }
+
+            return new NodeSet(null, ids);
+        }
+
+        long[] words = new long[length];
+
+        for (int id = bits.nextSetBit(0); id >= 0; id = bits.nextSetBit(id + 1)) {
+            words[id >>> 6] |= 1L << id;
+        }
+
+        return new NodeSet(words, null);
+    }
+
+    public boolean contains(int id) {
+        if (id < 0) {
+            return false;
+        }
+
+        if (this.words != null) {
+            int word = id >>> 6;
+            return word < this.words.length && (this.words[word] & (1L << id)) != 0;
+        }
+
+        return Arrays.binarySearch(this.ids, id) >= 0;
+    }
+
+    public boolean isEmpty() {
+        return this == EMPTY;
+    }
+
+    /**
+     * Copies this set into a bitset, for unions and edits.
+     *
+     * @return BitSet
+     */
+    public BitSet toBitSet() {
+        BitSet bits = new BitSet();
+        this.addTo(bits);
+        return bits;
+    }
+
+    /**
+     * Ors this set into a bitset.
+     *
+     * @param bits
+     */
+    public void addTo(BitSet bits) {
+        if (this.words != null) {
+            for (int i = 0; i < this.words.length; i++) {
+                long word = this.words[i];
+
+                while (word != 0) {
+                    int bit = Long.numberOfTrailingZeros(word);
+                    bits.set((i << 6) + bit);
+                    word &= word - 1;
+                }
+            }
+        } else {
+            for (int id : this.ids) {
+                bits.set(id);
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.nijiko.permissions;
 
+import java.util.Collection;
 import java.util.Map;
 import org.bukkit.entity.Player;
 import org.bukkit.util.config.Configuration;
@@ -25,6 +26,14 @@ import org.bukkit.util.config.Configuration;
 
 /**
  * Abstract method for multiple permission handlers
+ * <br /><br />
+ * Handlers are safe to call from any thread. Permission checks do not block
+ * each other, while loads and edits of a world are applied one at a time
+ * and info lookups wait for the edit of their world in progress, if any.
+ * <br /><br />
+ * Methods added since the first release have defaults built on the older
+ * ones, so handlers written against it keep working, just without the
+ * speedups.
  *
  * @author Nijiko
  */
@@ -35,6 +44,27 @@ public abstract class PermissionHandler {
 
     public abstract boolean loadWorld(String world);
     public abstract void forceLoadWorld(String world);
+
+    /**
+     * Loads several worlds in parallel and waits for them, skipping worlds
+     * that are already loaded. The worlds they copy are loaded along with
+     * them. Meant to be called off the main thread so the first check in a
+     * world does not have to load it.
+     *
+     * @param worlds
+     */
+    public void loadWorlds(Collection<String> worlds) {
+        for (String world : worlds) {
+            this.loadWorld(world);
+        }
+    }
+
+    /**
+     * Loads every world file in the data folder, when plugin.permissions.preload
+     * is set in the default world's file. Blocks like loadWorlds().
+     */
+    public void preload() {
+    }
     public abstract boolean checkWorld(String world);
 
     public abstract void load();
@@ -42,15 +72,57 @@ public abstract class PermissionHandler {
     public abstract void reload();
     public abstract boolean reload(String world);
 
+    /**
+     * Reads one user of a world from its file again. Only the cached
+     * decisions of that user are dropped.
+     *
+     * @param world
+     * @param user
+     * @return boolean. False if world is not loaded.
+     */
+    public boolean reloadUser(String world, String user) {
+        return this.reload(world);
+    }
+
+    /**
+     * Reads one group of a world from its file again. Only the cached
+     * decisions of players resolving through that group are dropped.
+     *
+     * @param world
+     * @param group
+     * @return boolean. False if world is not loaded.
+     */
+    public boolean reloadGroup(String world, String group) {
+        return this.reload(world);
+    }
+
     // Cache
     public abstract void setCache(String world, Map<String, Boolean> Cache);
     public abstract void setCacheItem(String world, String player, String permission, boolean data);
+
+    /**
+     * Grabs a copy of a world's cached decisions, keyed by "player,node".
+     * Changes to the returned map do not reach the cache, use setCache for that.
+     *
+     * @param world
+     * @return Map
+     */
     public abstract Map<String, Boolean> getCache(String world);
     public abstract boolean getCacheItem(String world, String player, String permission);
     public abstract void removeCachedItem(String world, String player, String permission);
     public abstract void clearCache(String world);
     public abstract void clearAllCache();
 
+    /**
+     * Grabs the size, limit, hits, misses and evictions of a world's cache.
+     *
+     * @param world
+     * @return String. If the world is not loaded return "".
+     */
+    public String getCacheStatistics(String world) {
+        return "";
+    }
+
 
     /**
      * Simple alias for permission method.
@@ -84,6 +156,169 @@ public abstract class PermissionHandler {
     public abstract boolean permission(Player player, String permission);
 
     public abstract boolean permission(String worldName, String playerName, String permission);
+
+    /**
+     * Compiles a node for repeated checks. Checks of a compiled node skip
+     * hashing and walking the node string, so compile it once and keep it.
+     * <br /><br />
+     * Example usage:
+     * <blockquote><pre>
+     * private static final PermissionNode HOME = Plugin.Permissions.Security.compile("essentials.home");
+     * boolean canGoHome = Plugin.Permissions.Security.has(player, HOME);
+     * </pre></blockquote>
+     *
+     * @param node
+     * @return PermissionNode
+     */
+    public PermissionNode compile(String node) {
+        return new PermissionNode(node, -1);
+    }
+
+    public boolean has(Player player, PermissionNode node) {
+        return this.has(player, node.getNode());
+    }
+
+    public boolean has(String worldName, String playerName, PermissionNode node) {
+        return this.has(worldName, playerName, node.getNode());
+    }
+
+    public boolean has(PermissionSubject subject, PermissionNode node) {
+        return this.has(subject, node.getNode());
+    }
+
+    /**
+     * Checks a node through a subject grabbed from getSubject().
+     *
+     * @param subject
+     * @param permission
+     * @return boolean
+     */
+    public boolean has(PermissionSubject subject, String permission) {
+        return this.has(subject.getWorld(), subject.getName(), permission);
+    }
+
+    /**
+     * Grabs a player resolved against the world they are in. Subjects are
+     * kept from join to quit and rebuilt when the player changes world or
+     * the world's data changes, so checks by Player skip the name and world
+     * lookups. Callers holding on to a subject should grab it again after
+     * the player changes world.
+     *
+     * @param player
+     * @return PermissionSubject
+     */
+    public PermissionSubject getSubject(Player player) {
+        return new PermissionSubject(player.getWorld().getName(), player.getName().toLowerCase());
+    }
+
+    /**
+     * Resolves a player against a world ahead of their first check there,
+     * e.g. on join or when they are about to change world.
+     *
+     * @param player
+     * @param world
+     */
+    public void updateSubject(Player player, String world) {
+    }
+
+    /**
+     * Forgets a player that left, along with their cached decisions.
+     *
+     * @param player
+     */
+    public void removeSubject(Player player) {
+    }
+
+    /**
+     * Checks a batch of nodes for one player. The world and the player are
+     * only resolved once, which makes this much cheaper than calling
+     * has() for each node.
+     * <br /><br />
+     * Example usage:
+     * <blockquote><pre>
+     * String[] nodes = { "essentials.home", "essentials.sethome", "essentials.warp" };
+     * boolean[] allowed = Plugin.Permissions.Security.check(player, nodes);
+     * </pre></blockquote>
+     *
+     * @param player
+     * @param permissions
+     * @return boolean[], one decision per node in the same order.
+     */
+    public boolean[] check(Player player, String[] permissions) {
+        boolean[] results = new boolean[permissions.length];
+
+        for (int i = 0; i < permissions.length; i++) {
+            results[i] = this.has(player, permissions[i]);
+        }
+
+        return results;
+    }
+
+    public boolean[] check(String worldName, String playerName, String[] permissions) {
+        boolean[] results = new boolean[permissions.length];
+
+        for (int i = 0; i < permissions.length; i++) {
+            results[i] = this.has(worldName, playerName, permissions[i]);
+        }
+
+        return results;
+    }
+
+    /**
+     * Checks whether a player has every one of a batch of nodes, stopping at
+     * the first node they lack.
+     *
+     * @param player
+     * @param permissions
+     * @return boolean
+     */
+    public boolean hasAll(Player player, String[] permissions) {
+        for (String permission : permissions) {
+            if (!this.has(player, permission)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public boolean hasAll(String worldName, String playerName, String[] permissions) {
+        for (String permission : permissions) {
+            if (!this.has(worldName, playerName, permission)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Checks whether a player has at least one of a batch of nodes, stopping
+     * at the first node they have.
+     *
+     * @param player
+     * @param permissions
+     * @return boolean
+     */
+    public boolean hasAny(Player player, String[] permissions) {
+        for (String permission : permissions) {
+            if (this.has(player, permission)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    public boolean hasAny(String worldName, String playerName, String[] permissions) {
+        for (String permission : permissions) {
+            if (this.has(worldName, playerName, permission)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
     
     /**
      * Grabs group name.
@@ -311,5 +546,17 @@ public abstract class PermissionHandler {
     public abstract void save(String world);
     public abstract void saveAll();
 	//End of addition by rcjrrjcr
+
+    /**
+     * Saves every world with unsaved edits and stops saving in the
+     * background, waiting at most the given time. Edits made afterwards are
+     * saved in the background again.
+     *
+     * @param timeout - Milliseconds to wait.
+     * @return boolean, false if some world was not saved.
+     */
+    public boolean shutdown(long timeout) {
+        return true;
+    }
     
 }
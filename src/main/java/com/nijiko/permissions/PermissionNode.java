@@ -0,0 +1,90 @@
+package com.nijiko.permissions;
+
+/**
+ * Permissions 2.x
+ * Copyright (C) 2011  Matt 'The Yeti' Burnett <admin@theyeticave.net>
+ * Original Credit & Copyright (C) 2010 Nijikokun <nijikokun@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Permissions Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Permissions Public License for more details.
+ *
+ * You should have received a copy of the GNU Permissions Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A permission node compiled once for repeated checks.
+ * <br /><br />
+ * Grab one from PermissionHandler.compile() and keep it, e.g. in a static
+ * final field. It carries the id its decisions are cached under, and
+ * remembers for the last few world dictionaries it met the ids of its
+ * exempt form, its exact form and its globalized parents, so a check that
+ * misses the cache only has to test the player's sets.
+ *
+ * @author TheYeti
+ */
+public final class PermissionNode {
+
+    private static final int SLOTS = 4;
+
+    private final String node;
+    final int id;
+
+    // Entries are immutable, so a racing reader sees either a whole entry or none.
+    private final Prepared[] prepared = new Prepared[SLOTS];
+    private int next = 0;
+
+    PermissionNode(String node, int id) {
+        this.node = node;
+        this.id = id;
+    }
+
+    public String getNode() {
+        return this.node;
+    }
+
+    /**
+     * Grabs the ids to test for this node in a dictionary.
+     *
+     * @param nodes
+     * @return int[], see {@link NodeDictionary#prepare(String)}.
+     */
+    int[] prepare(NodeDictionary nodes) {
+        for (Prepared entry : this.prepared) {
+            if (entry != null && entry.nodes == nodes) {
+                return entry.ids;
+            }
+        }
+
+        int[] ids = nodes.prepare(this.node);
+
+        synchronized (this) {
+            this.prepared[this.next] = new Prepared(nodes, ids);
+            this.next = (this.next + 1) % SLOTS;
+        }
+
+        return ids;
+    }
+
+    @Override
+    public String toString() {
+        return this.node;
+    }
+
+    private static final class Prepared {
+        private final NodeDictionary nodes;
+        private final int[] ids;
+
+        private Prepared(NodeDictionary nodes, int[] ids) {
+            this.nodes = nodes;
+            this.ids = ids;
+        }
+    }
+}
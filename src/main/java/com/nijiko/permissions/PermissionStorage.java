@@ -0,0 +1,361 @@
+package com.nijiko.permissions;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import org.bukkit.util.config.Configuration;
+
+/**
+ * Permissions 2.x
+ * Copyright (C) 2011  Matt 'The Yeti' Burnett <admin@theyeticave.net>
+ * Original Credit & Copyright (C) 2010 Nijikokun <nijikokun@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Permissions Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Permissions Public License for more details.
+ *
+ * You should have received a copy of the GNU Permissions Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Where the handler keeps the groups and users of its worlds.
+ * <br /><br />
+ * The handler holds every loaded world in memory and only goes to its
+ * storage to read a world, to record an edit, and to save a world. The
+ * storage is chosen by plugin.permissions.system in the default world's
+ * file, among the storages registered here. "default" and "yaml" keep each
+ * world in plugins/Permissions/&lt;world&gt;.yml, "sqlite" and "h2" keep
+ * every world in an embedded database in the same folder.
+ * <br /><br />
+ * Every storage hands the handler a {@link Configuration} per world laid
+ * out like a world file, which the handler reads info nodes from and
+ * applies edits to, so plugins using the configuration keep working.
+ *
+ * @author TheYeti
+ */
+public abstract class PermissionStorage {
+
+    protected static final Logger log = Logger.getLogger("Minecraft");
+
+    /**
+     * Kinds of edit passed to {@link #record(String, byte, String, String, Object)}.
+     */
+    public static final byte ADD_USER_PERMISSION = 1;
+    public static final byte REMOVE_USER_PERMISSION = 2;
+    public static final byte ADD_GROUP_PERMISSION = 3;
+    public static final byte REMOVE_GROUP_PERMISSION = 4;
+    public static final byte SET_USER_INFO = 5;
+    public static final byte REMOVE_USER_INFO = 6;
+    public static final byte SET_GROUP_INFO = 7;
+    public static final byte REMOVE_GROUP_INFO = 8;
+
+    private static final Map<String, Factory> Storages = new ConcurrentHashMap<String, Factory>();
+
+    static {
+        Factory yaml = new Factory() {
+            public PermissionStorage create(File folder) {
+                return new YamlStorage(folder);
+            }
+        };
+
+        register("default", yaml);
+        register("yaml", yaml);
+        register("sqlite", new Factory() {
+            public PermissionStorage create(File folder) {
+                return SqlStorage.sqlite(folder);
+            }
+        });
+        register("h2", new Factory() {
+            public PermissionStorage create(File folder) {
+                return SqlStorage.h2(folder);
+            }
+        });
+    }
+
+    /**
+     * Makes a storage available to plugin.permissions.system. Register
+     * before Permissions loads, e.g. from your plugin's onLoad().
+     *
+     * @param system - Name, not case sensitive.
+     * @param factory
+     */
+    public static void register(String system, Factory factory) {
+        Storages.put(system.toLowerCase(), factory);
+    }
+
+    /**
+     * Creates the storage registered under a name, or the default one if
+     * there is none.
+     *
+     * @param system
+     * @param folder - Data folder of the plugin.
+     * @return PermissionStorage
+     */
+    public static PermissionStorage create(String system, File folder) {
+        Factory factory = (system == null) ? null : Storages.get(system.toLowerCase());
+
+        if (factory == null) {
+            log.warning("[Permissions] Unknown permission system " + system + ", using the default.");
+            return Storages.get("default").create(folder);
+        }
+
+        try {
+            return factory.create(folder);
+        } catch (IllegalStateException e) {
+            log.severe("[Permissions] Could not use permission system " + system + ", using the default: " + e.getMessage());
+            return Storages.get("default").create(folder);
+        }
+    }
+
+    /**
+     * Checks whether a world has data of its own. A world without any
+     * copies the default world.
+     *
+     * @param world - Lowercased world.
+     * @return boolean
+     */
+    public abstract boolean exists(String world);
+
+    /**
+     * Grabs every world that has data, for preloading.
+     *
+     * @return List of worlds.
+     */
+    public abstract List<String> getWorlds();
+
+    /**
+     * Reads a world. Groups, users and the settings under
+     * plugin.permissions are handed to entries as they are read, users
+     * only if the storage does not read them on demand.
+     *
+     * @param world - Lowercased world.
+     * @param entries
+     * @return Source of the world's configuration.
+     * @throws IOException
+     */
+    public abstract Source read(String world, Entries entries) throws IOException;
+
+    /**
+     * Reads the stored data of a world into a new configuration, for
+     * reloading a single group, or user unless they are read on demand.
+     *
+     * @param world - Lowercased world.
+     * @return Configuration, loaded.
+     * @throws IOException
+     */
+    public abstract Configuration fetch(String world) throws IOException;
+
+    /**
+     * Reads the stored data of one user of a world into a new
+     * configuration laid out like a world file, for a storage that reads
+     * users on demand.
+     *
+     * @param world - Lowercased world.
+     * @param name - User name.
+     * @return Configuration, loaded. Without the user if there is none.
+     * @throws IOException
+     */
+    public Configuration fetchUser(String world, String name) throws IOException {
+        return this.fetch(world);
+    }
+
+    /**
+     * Records an edit the handler already applied to the world's
+     * configuration. The caller holds the world's lock.
+     *
+     * @param world - Lowercased world.
+     * @param type - One of the edit kinds above.
+     * @param name - User or group, as given.
+     * @param node - Permission or info node.
+     * @param value - Info value, only for SET_USER_INFO and SET_GROUP_INFO.
+     * @return boolean, true if the world should be saved soon, false if the edit is safe until shutdown.
+     * @throws IOException if the edit could not be recorded, the world is then saved soon.
+     */
+    public abstract boolean record(String world, byte type, String name, String node, Object value) throws IOException;
+
+    /**
+     * Starts saving a world. Called under the world's lock, so the
+     * configuration must not be used by the returned save.
+     *
+     * @param world - Lowercased world.
+     * @param config - Configuration of the world.
+     * @return Save to run outside of the lock, null if the world is already saved.
+     * @throws IOException if the world could not be saved.
+     */
+    public abstract Save save(String world, Configuration config) throws IOException;
+
+    /**
+     * Checks whether read leaves the users out. The handler then reads each
+     * user through {@link #fetchUser(String, String)} the first time they
+     * join or are checked.
+     *
+     * @return boolean
+     */
+    public boolean readsUsersOnDemand() {
+        return false;
+    }
+
+    /**
+     * Checks whether a world that was just read holds edits its store does
+     * not, e.g. ones replayed from a journal. The handler then saves the
+     * world on shutdown.
+     *
+     * @param world - Lowercased world.
+     * @return boolean
+     */
+    public boolean hasPending(String world) {
+        return false;
+    }
+
+    /**
+     * Applies the settings under plugin.permissions of the default world.
+     *
+     * @param settings - Setting, e.g. "journal.size", to its value.
+     */
+    public void configure(Map<String, Object> settings) {
+    }
+
+    /**
+     * Releases what the storage holds open, on shutdown. It is opened
+     * again if the handler is used afterwards.
+     */
+    public void close() {
+    }
+
+    /**
+     * Hands a configuration laid out like a world file to entries.
+     *
+     * @param config - Loaded configuration.
+     * @param entries
+     */
+    protected static void read(Configuration config, Entries entries) {
+        Object settings = config.getProperty("plugin.permissions");
+
+        if (settings instanceof Map) {
+            settings("", (Map<?, ?>) settings, entries);
+        }
+
+        List<String> groupKeys = config.getKeys("groups");
+        List<String> userKeys = config.getKeys("users");
+
+        if (groupKeys != null) {
+            for (String key : groupKeys) {
+                entries.group(key,
+                        config.getBoolean("groups." + key + ".default", false),
+                        config.getString("groups." + key + ".info.prefix", null),
+                        config.getString("groups." + key + ".info.suffix", null),
+                        config.getBoolean("groups." + key + ".info.build", false),
+                        config.getStringList("groups." + key + ".inheritance", null),
+                        config.getStringList("groups." + key + ".permissions", null));
+            }
+        }
+
+        if (userKeys != null) {
+            for (String key : userKeys) {
+                entries.user(key,
+                        config.getString("users." + key + ".group"),
+                        config.getStringList("users." + key + ".permissions", null));
+            }
+        }
+    }
+
+    private static void settings(String prefix, Map<?, ?> settings, Entries entries) {
+        for (Map.Entry<?, ?> setting : settings.entrySet()) {
+            String key = prefix + setting.getKey();
+
+            if (setting.getValue() instanceof Map) {
+                settings(key + ".", (Map<?, ?>) setting.getValue(), entries);
+            } else {
+                entries.setting(key, setting.getValue());
+            }
+        }
+    }
+
+    /**
+     * Creates storages. A factory that cannot create its storage throws an
+     * IllegalStateException, and the default storage is used instead.
+     */
+    public interface Factory {
+        PermissionStorage create(File folder);
+    }
+
+    /**
+     * Receives a world as it is read.
+     */
+    public interface Entries {
+
+        /**
+         * @param key - Setting under plugin.permissions, nested ones dotted, e.g. "cache.size".
+         * @param value - String, Boolean, Number or null.
+         */
+        void setting(String key, Object value);
+
+        /**
+         * @param key - Group name as written.
+         * @param Default - Whether this is the default group, the first one wins.
+         * @param prefix
+         * @param suffix
+         * @param build
+         * @param inheritance
+         * @param permissions
+         */
+        void group(String key, boolean Default, String prefix, String suffix, boolean build, List<String> inheritance, List<String> permissions);
+
+        /**
+         * @param key - User name as written.
+         * @param group - Group as written, null for the default group, "" for none.
+         * @param permissions
+         */
+        void user(String key, String group, List<String> permissions);
+    }
+
+    /**
+     * Writes a save started under the world's lock.
+     */
+    public interface Save {
+
+        /**
+         * @return boolean, false if the world could not be written.
+         */
+        boolean write();
+    }
+
+    /**
+     * The configuration a world was read from, shared by the models edits
+     * derive from it. It is loaded the first time it is used when the
+     * storage did not need it to read the world.
+     */
+    public static final class Source {
+        private final Configuration config;
+        private boolean loaded;
+
+        /**
+         * @param config
+         * @param loaded - Whether config was already loaded, otherwise it is loaded on first use.
+         */
+        public Source(Configuration config, boolean loaded) {
+            this.config = config;
+            this.loaded = loaded;
+        }
+
+        synchronized Configuration get() {
+            if (!this.loaded) {
+                this.config.load();
+                this.loaded = true;
+            }
+
+            return this.config;
+        }
+    }
+}
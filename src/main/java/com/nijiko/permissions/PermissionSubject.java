@@ -0,0 +1,90 @@
+package com.nijiko.permissions;
+
+/**
+ * Permissions 2.x
+ * Copyright (C) 2011  Matt 'The Yeti' Burnett <admin@theyeticave.net>
+ * Original Credit & Copyright (C) 2010 Nijikokun <nijikokun@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Permissions Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Permissions Public License for more details.
+ *
+ * You should have received a copy of the GNU Permissions Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A player resolved against the data of the world they are in.
+ * <br /><br />
+ * Holds the player's id and their own and inherited group nodes, taken from
+ * one snapshot of the world, so checks through a subject skip the world
+ * alias, the name lowercasing and the user and group lookups. A subject is
+ * rebuilt by the handler when the player changes world or the world's data
+ * changes.
+ *
+ * @author TheYeti
+ */
+public final class PermissionSubject {
+
+    final String world;
+    final String name;
+    final int player;
+    final WorldModel model;
+    final NodeSet user;
+    final NodeSet group;
+
+    /**
+     * A subject that is only a name and a world, for handlers that do not
+     * resolve players ahead of their checks.
+     */
+    PermissionSubject(String world, String name) {
+        this(world, name, -1, null, null, null);
+    }
+
+    PermissionSubject(String world, String name, int player, WorldModel model, NodeSet user, NodeSet group) {
+        this.world = world;
+        this.name = name;
+        this.player = player;
+        this.model = model;
+        this.user = user;
+        this.group = group;
+    }
+
+    /**
+     * Grabs the world the subject was resolved for, as it was asked for.
+     *
+     * @return String
+     */
+    public String getWorld() {
+        return this.world;
+    }
+
+    /**
+     * Grabs the lowercased player name.
+     *
+     * @return String
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Decides a node straight from the resolved sets, bypassing the cache.
+     *
+     * @param permission
+     * @return boolean
+     */
+    boolean resolve(String permission) {
+        return (this.group != null) && this.model.getNodes().has(permission, this.user, this.group);
+    }
+
+    boolean resolve(PermissionNode permission) {
+        return (this.group != null) && NodeDictionary.has(permission.prepare(this.model.getNodes()), this.user, this.group);
+    }
+}
@@ -0,0 +1,260 @@
+package com.nijiko.permissions;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Permissions 2.x
+ * Copyright (C) 2011  Matt 'The Yeti' Burnett <admin@theyeticave.net>
+ * Original Credit & Copyright (C) 2010 Nijikokun <nijikokun@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Permissions Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Permissions Public License for more details.
+ *
+ * You should have received a copy of the GNU Permissions Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Saves edited worlds in the background.
+ * <br /><br />
+ * Edits mark their world dirty. A dirty world is saved once it has had no
+ * edits for the delay, or at the latest once the interval has passed since
+ * its first unsaved edit, so a burst of edits ends up in one write. The
+ * save itself is done by the handler, which copies the world's
+ * configuration under the world's lock and writes the copy on the
+ * persister's thread.
+ *
+ * @author TheYeti
+ */
+final class Persister {
+
+    private static final Logger log = Logger.getLogger("Minecraft");
+
+    private final Control control;
+    private final Map<String, Pending> Pending = new HashMap<String, Pending>();
+    private ScheduledThreadPoolExecutor executor = null;
+    private boolean stopped = false;
+
+    private volatile long delay = 5000L;
+    private volatile long interval = 60000L;
+
+    Persister(Control control) {
+        this.control = control;
+    }
+
+    /**
+     * Sets when dirty worlds are saved.
+     *
+     * @param delay - Milliseconds without edits before a world is saved.
+     * @param interval - Most milliseconds an edit stays unsaved, 0 to only save on shutdown.
+     */
+    void setTimings(long delay, long interval) {
+        this.delay = Math.max(0L, delay);
+        this.interval = Math.max(0L, interval);
+    }
+
+    /**
+     * Marks a world as edited.
+     *
+     * @param world - Lowercased world.
+     */
+    synchronized void dirty(String world) {
+        long now = System.currentTimeMillis();
+        this.stopped = false;
+        Pending pending = this.Pending.get(world);
+
+        if (pending == null) {
+            pending = new Pending(world, now);
+            this.Pending.put(world, pending);
+        }
+
+        if (!pending.scheduled && this.interval > 0) {
+            pending.scheduled = true;
+            this.schedule(pending, Math.min(this.delay, this.interval));
+        }
+
+        pending.last = now;
+    }
+
+    /**
+     * Marks a world as edited, for edits that are already safe in its
+     * journal. The world is saved on shutdown, or in the background once it
+     * is marked dirty.
+     *
+     * @param world - Lowercased world.
+     */
+    synchronized void journaled(String world) {
+        if (!this.Pending.containsKey(world)) {
+            this.Pending.put(world, new Pending(world, System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Marks a world whose save failed. It is retried in the background,
+     * unless saving was shut down: no thread is started again for it then,
+     * it waits for the next edit, saveAll() or shutdown().
+     *
+     * @param world - Lowercased world.
+     */
+    synchronized void failed(String world) {
+        if (!this.stopped) {
+            this.dirty(world);
+            return;
+        }
+
+        log.severe("[Permissions] Could not save world " + world + " after saving was shut down, it is saved with the next edit.");
+
+        if (!this.Pending.containsKey(world)) {
+            this.Pending.put(world, new Pending(world, System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Grabs and clears every dirty world, for a save done by the caller.
+     *
+     * @return List of lowercased worlds.
+     */
+    synchronized List<String> drain() {
+        List<String> worlds = new ArrayList<String>(this.Pending.keySet());
+        this.Pending.clear();
+        return worlds;
+    }
+
+    /**
+     * Saves every dirty world and stops the background thread, waiting at
+     * most the given time. Later edits start the thread again.
+     *
+     * @param timeout - Milliseconds.
+     * @return boolean, false if some world was not saved in time or could not be saved.
+     */
+    boolean shutdown(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        ScheduledThreadPoolExecutor running;
+
+        synchronized (this) {
+            running = this.executor;
+            this.executor = null;
+            this.stopped = true;
+        }
+
+        try {
+            // Let a save that is already being written finish, delayed ones are dropped.
+            if (running != null) {
+                running.shutdown();
+
+                if (!running.awaitTermination(Math.max(0L, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+                    log.severe("[Permissions] Timed out waiting for a background save.");
+                    return false;
+                }
+            }
+
+            final List<String> worlds = this.drain();
+
+            if (worlds.isEmpty()) {
+                return true;
+            }
+
+            ExecutorService flush = Executors.newSingleThreadExecutor(new Daemon());
+
+            try {
+                Future<Boolean> saved = flush.submit(new Callable<Boolean>() {
+                    public Boolean call() {
+                        boolean saved = true;
+
+                        for (String world : worlds) {
+                            saved &= control.persist(world);
+                        }
+
+                        return saved;
+                    }
+                });
+
+                return saved.get(Math.max(0L, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } finally {
+                flush.shutdown();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.log(Level.SEVERE, "[Permissions] Could not save worlds.", e.getCause());
+        } catch (TimeoutException e) {
+            log.severe("[Permissions] Timed out saving worlds.");
+        }
+
+        return false;
+    }
+
+    private void schedule(Pending pending, long delay) {
+        if (this.executor == null) {
+            this.executor = new ScheduledThreadPoolExecutor(1, new Daemon());
+            this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        }
+
+        this.executor.schedule(pending, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private final class Pending implements Runnable {
+        private final String world;
+        private final long first;
+        private long last;
+        private boolean scheduled = false;
+
+        private Pending(String world, long first) {
+            this.world = world;
+            this.first = first;
+            this.last = first;
+        }
+
+        public void run() {
+            synchronized (Persister.this) {
+                if (Pending.get(this.world) != this || executor == null) {
+                    return;
+                }
+
+                long now = System.currentTimeMillis();
+                long due = Math.min(this.last + delay, this.first + interval);
+
+                if (now < due) {
+                    schedule(this, due - now);
+                    return;
+                }
+
+                // Edits from here on mark the world again, and are saved by a later run.
+                Pending.remove(this.world);
+            }
+
+            if (!control.persist(this.world)) {
+                failed(this.world);
+            }
+        }
+    }
+
+    private static final class Daemon implements ThreadFactory {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Permissions saver");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,469 @@
+package com.nijiko.permissions;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Permissions 2.x
+ * Copyright (C) 2011  Matt 'The Yeti' Burnett <admin@theyeticave.net>
+ * Original Credit & Copyright (C) 2010 Nijikokun <nijikokun@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Permissions Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Permissions Public License for more details.
+ *
+ * You should have received a copy of the GNU Permissions Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Read-only map of names that shares its structure with the maps derived
+ * from it.
+ * <br /><br />
+ * Entries sit in a hash trie of 32-way nodes. {@link #with(String, Object)}
+ * and {@link #without(String)} copy only the nodes on the path to the one
+ * entry they change, so editing one user or group of a world costs a few
+ * small arrays however many entries the world has, and the map it was
+ * derived from is left as it was for anyone still reading it.
+ * <br /><br />
+ * Keys and values may not be null.
+ *
+ * @author TheYeti
+ */
+final class SharedMap<V> extends AbstractMap<String, V> {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    private static final int LAST_SHIFT = 30;
+    private static final Object MISSING = new Object();
+
+    @SuppressWarnings("rawtypes")
+    private static final SharedMap EMPTY = new SharedMap(null, 0);
+
+    private final Node root;
+    private final int size;
+
+    private SharedMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <V> SharedMap<V> empty() {
+        return (SharedMap<V>) EMPTY;
+    }
+
+    /**
+     * Grabs a shared map holding the entries of a map, the map itself when
+     * it already is one.
+     *
+     * @param map
+     * @return SharedMap
+     */
+    @SuppressWarnings("unchecked")
+    static <V> SharedMap<V> of(Map<String, ? extends V> map) {
+        if (map instanceof SharedMap) {
+            return (SharedMap<V>) map;
+        }
+
+        if (map.isEmpty()) {
+            return empty();
+        }
+
+        int count = map.size();
+        String[] keys = new String[count];
+        Object[] values = new Object[count];
+        int[] hashes = new int[count];
+        int[] order = new int[count];
+        int i = 0;
+
+        for (Map.Entry<String, ? extends V> entry : map.entrySet()) {
+            keys[i] = entry.getKey();
+            values[i] = entry.getValue();
+            hashes[i] = hash(keys[i]);
+            order[i] = i;
+            i++;
+        }
+
+        return new SharedMap<V>(build(keys, values, hashes, order, 0, count, 0), count);
+    }
+
+    private static int hash(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        Object value = this.find(key);
+        return (value == MISSING) ? null : (V) value;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return this.find(key) != MISSING;
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    private Object find(Object key) {
+        if (this.root == null || !(key instanceof String)) {
+            return MISSING;
+        }
+
+        return this.root.find(hash((String) key), 0, (String) key);
+    }
+
+    /**
+     * Grabs a map with one entry set.
+     *
+     * @param key
+     * @param value
+     * @return SharedMap, this one when the entry already held the value.
+     */
+    SharedMap<V> with(String key, V value) {
+        int hash = hash(key);
+
+        if (this.root == null) {
+            return new SharedMap<V>(new Node(1 << (hash & MASK), new Object[]{key, value}), 1);
+        }
+
+        boolean[] added = new boolean[1];
+        Node root = this.root.with(hash, 0, key, value, added);
+        return (root == this.root) ? this : new SharedMap<V>(root, this.size + (added[0] ? 1 : 0));
+    }
+
+    /**
+     * Grabs a map without one entry.
+     *
+     * @param key
+     * @return SharedMap, this one when there was no such entry.
+     */
+    SharedMap<V> without(String key) {
+        if (this.root == null) {
+            return this;
+        }
+
+        Node root = this.root.without(hash(key), 0, key);
+
+        if (root == this.root) {
+            return this;
+        }
+
+        return (root == null) ? SharedMap.<V>empty() : new SharedMap<V>(root, this.size - 1);
+    }
+
+    @Override
+    public Set<Map.Entry<String, V>> entrySet() {
+        return new AbstractSet<Map.Entry<String, V>>() {
+            @Override
+            public Iterator<Map.Entry<String, V>> iterator() {
+                return new Entries();
+            }
+
+            @Override
+            public int size() {
+                return SharedMap.this.size;
+            }
+        };
+    }
+
+    /**
+     * Builds the trie of a whole map at once, splitting the entries by the
+     * bits of their hash at each level.
+     */
+    private static Node build(String[] keys, Object[] values, int[] hashes, int[] order, int from, int to, int shift) {
+        if (shift > LAST_SHIFT) {
+            Object[] array = new Object[(to - from) * 2];
+
+            for (int i = from; i < to; i++) {
+                array[(i - from) * 2] = keys[order[i]];
+                array[(i - from) * 2 + 1] = values[order[i]];
+            }
+
+            return new Node(0, array);
+        }
+
+        int[] starts = new int[MASK + 2];
+
+        for (int i = from; i < to; i++) {
+            starts[((hashes[order[i]] >>> shift) & MASK) + 1]++;
+        }
+
+        int bitmap = 0;
+        int slots = 0;
+
+        for (int c = 0; c <= MASK; c++) {
+            if (starts[c + 1] > 0) {
+                bitmap |= 1 << c;
+                slots++;
+            }
+
+            starts[c + 1] += starts[c];
+        }
+
+        int[] sorted = new int[to - from];
+        int[] next = starts.clone();
+
+        for (int i = from; i < to; i++) {
+            sorted[next[(hashes[order[i]] >>> shift) & MASK]++] = order[i];
+        }
+
+        System.arraycopy(sorted, 0, order, from, sorted.length);
+
+        Object[] array = new Object[slots * 2];
+        int slot = 0;
+
+        for (int c = 0; c <= MASK; c++) {
+            int start = from + starts[c];
+            int end = from + starts[c + 1];
+
+            if (end - start == 1) {
+                array[slot * 2] = keys[order[start]];
+                array[slot * 2 + 1] = values[order[start]];
+                slot++;
+            } else if (end > start) {
+                array[slot * 2 + 1] = build(keys, values, hashes, order, start, end, shift + BITS);
+                slot++;
+            }
+        }
+
+        return new Node(bitmap, array);
+    }
+
+    /**
+     * One level of the trie. The array holds a key and its value per slot,
+     * or null and the node one level down. Past the last level a node is a
+     * plain list of keys whose hashes are equal.
+     */
+    private static final class Node {
+        private final int bitmap;
+        private final Object[] array;
+
+        private Node(int bitmap, Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        private Object find(int hash, int shift, String key) {
+            if (shift > LAST_SHIFT) {
+                for (int i = 0; i < this.array.length; i += 2) {
+                    if (key.equals(this.array[i])) {
+                        return this.array[i + 1];
+                    }
+                }
+
+                return MISSING;
+            }
+
+            int bit = 1 << ((hash >>> shift) & MASK);
+
+            if ((this.bitmap & bit) == 0) {
+                return MISSING;
+            }
+
+            int i = Integer.bitCount(this.bitmap & (bit - 1)) * 2;
+            Object stored = this.array[i];
+
+            if (stored == null) {
+                return ((Node) this.array[i + 1]).find(hash, shift + BITS, key);
+            }
+
+            return key.equals(stored) ? this.array[i + 1] : MISSING;
+        }
+
+        private Node with(int hash, int shift, String key, Object value, boolean[] added) {
+            if (shift > LAST_SHIFT) {
+                for (int i = 0; i < this.array.length; i += 2) {
+                    if (key.equals(this.array[i])) {
+                        return (this.array[i + 1] == value) ? this : this.set(i + 1, value);
+                    }
+                }
+
+                added[0] = true;
+                return new Node(0, insert(this.array, this.array.length, key, value));
+            }
+
+            int bit = 1 << ((hash >>> shift) & MASK);
+            int i = Integer.bitCount(this.bitmap & (bit - 1)) * 2;
+
+            if ((this.bitmap & bit) == 0) {
+                added[0] = true;
+                return new Node(this.bitmap | bit, insert(this.array, i, key, value));
+            }
+
+            Object stored = this.array[i];
+
+            if (stored == null) {
+                Node child = (Node) this.array[i + 1];
+                Node changed = child.with(hash, shift + BITS, key, value, added);
+                return (changed == child) ? this : this.set(i + 1, changed);
+            }
+
+            if (key.equals(stored)) {
+                return (this.array[i + 1] == value) ? this : this.set(i + 1, value);
+            }
+
+            added[0] = true;
+            Node pair = pair(shift + BITS, (String) stored, this.array[i + 1], key, hash, value);
+            Object[] array = this.array.clone();
+            array[i] = null;
+            array[i + 1] = pair;
+            return new Node(this.bitmap, array);
+        }
+
+        private Node without(int hash, int shift, String key) {
+            if (shift > LAST_SHIFT) {
+                for (int i = 0; i < this.array.length; i += 2) {
+                    if (key.equals(this.array[i])) {
+                        return (this.array.length == 2) ? null : new Node(0, remove(this.array, i));
+                    }
+                }
+
+                return this;
+            }
+
+            int bit = 1 << ((hash >>> shift) & MASK);
+
+            if ((this.bitmap & bit) == 0) {
+                return this;
+            }
+
+            int i = Integer.bitCount(this.bitmap & (bit - 1)) * 2;
+            Object stored = this.array[i];
+
+            if (stored == null) {
+                Node child = (Node) this.array[i + 1];
+                Node changed = child.without(hash, shift + BITS, key);
+
+                if (changed == child) {
+                    return this;
+                }
+
+                if (changed != null) {
+                    return this.set(i + 1, changed);
+                }
+            } else if (!key.equals(stored)) {
+                return this;
+            }
+
+            return (this.bitmap == bit) ? null : new Node(this.bitmap & ~bit, remove(this.array, i));
+        }
+
+        private Node set(int i, Object value) {
+            Object[] array = this.array.clone();
+            array[i] = value;
+            return new Node(this.bitmap, array);
+        }
+
+        private static Node pair(int shift, String key1, Object value1, String key2, int hash2, Object value2) {
+            if (shift > LAST_SHIFT) {
+                return new Node(0, new Object[]{key1, value1, key2, value2});
+            }
+
+            int hash1 = hash(key1);
+            int chunk1 = (hash1 >>> shift) & MASK;
+            int chunk2 = (hash2 >>> shift) & MASK;
+
+            if (chunk1 == chunk2) {
+                return new Node(1 << chunk1, new Object[]{null, pair(shift + BITS, key1, value1, key2, hash2, value2)});
+            }
+
+            Object[] array = (chunk1 < chunk2) ? new Object[]{key1, value1, key2, value2} : new Object[]{key2, value2, key1, value1};
+            return new Node((1 << chunk1) | (1 << chunk2), array);
+        }
+
+        private static Object[] insert(Object[] array, int i, Object key, Object value) {
+            Object[] grown = new Object[array.length + 2];
+            System.arraycopy(array, 0, grown, 0, i);
+            grown[i] = key;
+            grown[i + 1] = value;
+            System.arraycopy(array, i, grown, i + 2, array.length - i);
+            return grown;
+        }
+
+        private static Object[] remove(Object[] array, int i) {
+            Object[] shrunk = new Object[array.length - 2];
+            System.arraycopy(array, 0, shrunk, 0, i);
+            System.arraycopy(array, i + 2, shrunk, i, array.length - i - 2);
+            return shrunk;
+        }
+    }
+
+    /**
+     * Walks the trie depth first, keeping the path from the root.
+     */
+    private final class Entries implements Iterator<Map.Entry<String, V>> {
+        private final Object[][] arrays = new Object[LAST_SHIFT / BITS + 2][];
+        private final int[] positions = new int[LAST_SHIFT / BITS + 2];
+        private int depth = -1;
+        private Map.Entry<String, V> next;
+
+        private Entries() {
+            if (root != null) {
+                this.depth = 0;
+                this.arrays[0] = root.array;
+            }
+
+            this.next = this.advance();
+        }
+
+        @SuppressWarnings("unchecked")
+        private Map.Entry<String, V> advance() {
+            while (this.depth >= 0) {
+                Object[] array = this.arrays[this.depth];
+                int i = this.positions[this.depth];
+
+                if (i >= array.length) {
+                    this.positions[this.depth] = 0;
+                    this.depth--;
+                    continue;
+                }
+
+                this.positions[this.depth] = i + 2;
+
+                if (array[i] != null) {
+                    return new SimpleImmutableEntry<String, V>((String) array[i], (V) array[i + 1]);
+                }
+
+                this.depth++;
+                this.arrays[this.depth] = ((Node) array[i + 1]).array;
+                this.positions[this.depth] = 0;
+            }
+
+            return null;
+        }
+
+        public boolean hasNext() {
+            return this.next != null;
+        }
+
+        public Map.Entry<String, V> next() {
+            if (this.next == null) {
+                throw new NoSuchElementException();
+            }
+
+            Map.Entry<String, V> current = this.next;
+            this.next = this.advance();
+            return current;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.nijiko.permissions;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Permissions 2.x
+ * Copyright (C) 2011  Matt 'The Yeti' Burnett <admin@theyeticave.net>
+ * Original Credit & Copyright (C) 2010 Nijikokun <nijikokun@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Permissions Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Permissions Public License for more details.
+ *
+ * You should have received a copy of the GNU Permissions Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Writes the snapshots of world files ahead of time, so that the server
+ * does not have to read the files on its first start after they changed.
+ * <br /><br />
+ * Run with SnakeYAML on the classpath, e.g. with the server jar:
+ * <pre>
+ * java -cp Permissions.jar:craftbukkit.jar com.nijiko.permissions.SnapshotCompiler plugins/Permissions/world.yml ...
+ * </pre>
+ *
+ * @author TheYeti
+ */
+public final class SnapshotCompiler {
+
+    private SnapshotCompiler() {
+    }
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.err.println("Usage: SnapshotCompiler <world.yml> [<world.yml> ...]");
+            System.exit(1);
+        }
+
+        int failed = 0;
+
+        for (String path : args) {
+            File source = new File(path);
+            String world = source.getName();
+
+            if (world.toLowerCase().endsWith(".yml")) {
+                world = world.substring(0, world.length() - 4);
+            }
+
+            try {
+                long start = System.nanoTime();
+                WorldSnapshot.read(world.toLowerCase(), source);
+                System.out.println(path + " -> " + WorldSnapshot.fileFor(source).getPath() + " in " + ((System.nanoTime() - start) / 1000000L) + " ms.");
+            } catch (IOException e) {
+                System.err.println(path + ": " + e.getMessage());
+                failed++;
+            }
+        }
+
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,915 @@
+package com.nijiko.permissions;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+
+import org.bukkit.util.config.Configuration;
+
+/**
+ * Permissions 2.x
+ * Copyright (C) 2011  Matt 'The Yeti' Burnett <admin@theyeticave.net>
+ * Original Credit & Copyright (C) 2010 Nijikokun <nijikokun@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Permissions Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Permissions Public License for more details.
+ *
+ * You should have received a copy of the GNU Permissions Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Keeps every world in an embedded SQL database, for worlds with more users
+ * than a world file holds comfortably.
+ * <br /><br />
+ * Groups, users, their nodes and info values, and the settings under
+ * plugin.permissions each have a table keyed by world and lowercased name,
+ * so an edit only touches its own rows. Edits are queued as they are
+ * recorded and only written when the handler saves the world in the
+ * background, all in one transaction. Until then reads lay the queued
+ * edits of their world over the rows they read, so no read has to wait
+ * for them to be written.
+ * <br /><br />
+ * Reading a world only reads its groups and settings. A user is read on
+ * its own the first time they join or are checked, so loading costs the
+ * same however many users a world has. The configuration handed to the
+ * handler holds the groups, the settings and the info values of the users
+ * read so far, user nodes are kept once, in the handler.
+ * <br /><br />
+ * A world without any rows is imported from its world file the first time
+ * it is read, the file is left as it is. The JDBC driver is not bundled,
+ * it has to be on the server's classpath, as the SQLite one is with
+ * CraftBukkit.
+ *
+ * @author TheYeti
+ */
+final class SqlStorage extends PermissionStorage {
+
+    private static final String USER = "u";
+    private static final String GROUP = "g";
+
+    private static final String[] SCHEMA = {
+        "CREATE TABLE IF NOT EXISTS permissions_settings (world VARCHAR(64) NOT NULL, setting VARCHAR(128) NOT NULL,"
+            + " value VARCHAR(1024), type CHAR(1) NOT NULL, PRIMARY KEY (world, setting))",
+        "CREATE TABLE IF NOT EXISTS permissions_groups (world VARCHAR(64) NOT NULL, name VARCHAR(64) NOT NULL,"
+            + " display VARCHAR(64) NOT NULL, is_default INT NOT NULL, PRIMARY KEY (world, name))",
+        "CREATE TABLE IF NOT EXISTS permissions_inheritance (world VARCHAR(64) NOT NULL, name VARCHAR(64) NOT NULL,"
+            + " parent VARCHAR(64) NOT NULL, PRIMARY KEY (world, name, parent))",
+        "CREATE TABLE IF NOT EXISTS permissions_users (world VARCHAR(64) NOT NULL, name VARCHAR(64) NOT NULL,"
+            + " display VARCHAR(64) NOT NULL, grp VARCHAR(64), PRIMARY KEY (world, name))",
+        "CREATE TABLE IF NOT EXISTS permissions_nodes (world VARCHAR(64) NOT NULL, kind CHAR(1) NOT NULL, name VARCHAR(64) NOT NULL,"
+            + " node VARCHAR(255) NOT NULL, PRIMARY KEY (world, kind, name, node))",
+        "CREATE TABLE IF NOT EXISTS permissions_info (world VARCHAR(64) NOT NULL, kind CHAR(1) NOT NULL, name VARCHAR(64) NOT NULL,"
+            + " node VARCHAR(128) NOT NULL, value VARCHAR(1024), type CHAR(1) NOT NULL, PRIMARY KEY (world, kind, name, node))"
+    };
+
+    private final File folder;
+    private final String driver;
+    private final String url;
+    private final String mergeNode;
+    private final String mergeInfo;
+    private final Map<String, List<Edit>> Queued = new HashMap<String, List<Edit>>();
+    private Connection connection = null;
+
+    /**
+     * @param folder - Data folder, holding the world files to import.
+     * @param driver - JDBC driver class.
+     * @param url - JDBC url of the database.
+     * @param mergeNode - Statement adding a row to permissions_nodes unless it is there.
+     * @param mergeInfo - Statement adding or replacing a row of permissions_info.
+     */
+    SqlStorage(File folder, String driver, String url, String mergeNode, String mergeInfo) {
+        this.folder = folder;
+        this.driver = driver;
+        this.url = url;
+        this.mergeNode = mergeNode;
+        this.mergeInfo = mergeInfo;
+    }
+
+    static SqlStorage sqlite(File folder) {
+        return create(folder, "org.sqlite.JDBC", "jdbc:sqlite:" + new File(folder, "permissions.db").getPath(),
+                "INSERT OR IGNORE INTO permissions_nodes (world, kind, name, node) VALUES (?, ?, ?, ?)",
+                "INSERT OR REPLACE INTO permissions_info (world, kind, name, node, value, type) VALUES (?, ?, ?, ?, ?, ?)");
+    }
+
+    static SqlStorage h2(File folder) {
+        return create(folder, "org.h2.Driver", "jdbc:h2:" + new File(folder, "permissions").getAbsolutePath(),
+                "MERGE INTO permissions_nodes (world, kind, name, node) KEY (world, kind, name, node) VALUES (?, ?, ?, ?)",
+                "MERGE INTO permissions_info (world, kind, name, node, value, type) KEY (world, kind, name, node) VALUES (?, ?, ?, ?, ?, ?)");
+    }
+
+    private static SqlStorage create(File folder, String driver, String url, String mergeNode, String mergeInfo) {
+        try {
+            Class.forName(driver);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("The JDBC driver " + driver + " is not on the classpath.");
+        }
+
+        return new SqlStorage(folder, driver, url, mergeNode, mergeInfo);
+    }
+
+    public synchronized boolean exists(String world) {
+        try {
+            return this.hasRows(world) || !this.queued(world).isEmpty() || new YamlStorage(this.folder).exists(world);
+        } catch (IOException e) {
+            log.warning("[Permissions] " + e.getMessage());
+            return false;
+        }
+    }
+
+    public synchronized List<String> getWorlds() {
+        Set<String> worlds = new LinkedHashSet<String>(new YamlStorage(this.folder).getWorlds());
+
+        try {
+            ResultSet result = this.connection().createStatement().executeQuery("SELECT world FROM permissions_groups"
+                    + " UNION SELECT world FROM permissions_users UNION SELECT world FROM permissions_settings");
+
+            try {
+                while (result.next()) {
+                    worlds.add(result.getString(1));
+                }
+            } finally {
+                close(result);
+            }
+        } catch (SQLException e) {
+            log.warning("[Permissions] Could not list the worlds in " + this.url + ": " + e.getMessage());
+        } catch (IOException e) {
+            log.warning("[Permissions] " + e.getMessage());
+        }
+
+        return new ArrayList<String>(worlds);
+    }
+
+    public synchronized Source read(String world, Entries entries) throws IOException {
+        return new Source(this.read(world, new Configuration(new File(this.folder, world + ".export.yml")), entries), true);
+    }
+
+    /**
+     * Reads the groups and settings of a world into a configuration laid
+     * out like a world file. Users are read one at a time, by fetchUser.
+     */
+    public synchronized Configuration fetch(String world) throws IOException {
+        return this.read(world, new Configuration(new File(this.folder, world + ".export.yml")), new Entries() {
+            public void setting(String key, Object value) {
+            }
+
+            public void group(String key, boolean Default, String prefix, String suffix, boolean build, List<String> inheritance, List<String> permissions) {
+            }
+
+            public void user(String key, String group, List<String> permissions) {
+            }
+        });
+    }
+
+    public synchronized Configuration fetchUser(String world, String name) throws IOException {
+        Configuration config = new Configuration(new File(this.folder, world + ".export.yml"));
+        String key = name.toLowerCase();
+        Row user = null;
+
+        try {
+            ResultSet result = this.query("SELECT display, grp FROM permissions_users WHERE world = ? AND name = ?", world, key);
+
+            try {
+                if (result.next()) {
+                    user = new Row(result.getString(1));
+                    user.group = result.getString(2);
+                }
+            } finally {
+                close(result);
+            }
+
+            if (user != null) {
+                result = this.query("SELECT node FROM permissions_nodes WHERE world = ? AND kind = ? AND name = ?", world, USER, key);
+
+                try {
+                    while (result.next()) {
+                        user.permissions.add(result.getString(1));
+                    }
+                } finally {
+                    close(result);
+                }
+
+                result = this.query("SELECT node, value, type FROM permissions_info WHERE world = ? AND kind = ? AND name = ?", world, USER, key);
+
+                try {
+                    while (result.next()) {
+                        user.info.put(result.getString(1), decode(result.getString(2), result.getString(3)));
+                    }
+                } finally {
+                    close(result);
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not read " + name + " of " + world + " from " + this.url + ": " + e.getMessage());
+        }
+
+        for (Edit edit : this.queued(world)) {
+            if (edit.isUser() && edit.name.equalsIgnoreCase(key)) {
+                user = edit.apply(user);
+            }
+        }
+
+        if (user != null) {
+            String path = "users." + user.display;
+
+            if (user.group != null) {
+                config.setProperty(path + ".group", user.group);
+            }
+
+            config.setProperty(path + ".permissions", user.permissions);
+
+            if (!user.info.isEmpty()) {
+                config.setProperty(path + ".info", user.info);
+            }
+        }
+
+        return config;
+    }
+
+    public boolean readsUsersOnDemand() {
+        return true;
+    }
+
+    /**
+     * Reads a world, importing its world file first if it has no rows yet.
+     * Settings and groups go into config as well as to entries.
+     */
+    private Configuration read(String world, Configuration config, Entries entries) throws IOException {
+        if (!this.hasRows(world) && new YamlStorage(this.folder).exists(world)) {
+            this.importWorld(world);
+        }
+
+        try {
+            this.readSettings(world, config, entries);
+            this.readGroups(world, config, entries);
+        } catch (SQLException e) {
+            throw new IOException("Could not read " + world + " from " + this.url + ": " + e.getMessage());
+        }
+
+        return config;
+    }
+
+    /**
+     * Queues an edit, it is written with the next save of the world. Edits
+     * usually come from the server thread, so no query runs here.
+     */
+    public boolean record(String world, byte type, String name, String node, Object value) throws IOException {
+        if (type < ADD_USER_PERMISSION || type > REMOVE_GROUP_INFO) {
+            throw new IOException("Unknown edit " + type + ".");
+        }
+
+        synchronized (this.Queued) {
+            List<Edit> edits = this.Queued.get(world);
+
+            if (edits == null) {
+                edits = new ArrayList<Edit>();
+                this.Queued.put(world, edits);
+            }
+
+            edits.add(new Edit(type, name, node, value));
+        }
+
+        return true;
+    }
+
+    /**
+     * Hands the queued edits of a world to a save, the configuration is not
+     * needed as every edit was recorded.
+     */
+    public Save save(final String world, Configuration config) {
+        synchronized (this.Queued) {
+            if (!this.Queued.containsKey(world)) {
+                return null;
+            }
+        }
+
+        return new Save() {
+            public boolean write() {
+                return flush(world);
+            }
+        };
+    }
+
+    public synchronized void close() {
+        List<String> worlds;
+
+        synchronized (this.Queued) {
+            worlds = new ArrayList<String>(this.Queued.keySet());
+        }
+
+        for (String world : worlds) {
+            this.flush(world);
+        }
+
+        if (this.connection != null) {
+            try {
+                this.connection.close();
+            } catch (SQLException e) {
+            }
+
+            this.connection = null;
+        }
+    }
+
+    /**
+     * Grabs a copy of the queued edits of a world, oldest first.
+     */
+    private List<Edit> queued(String world) {
+        synchronized (this.Queued) {
+            List<Edit> edits = this.Queued.get(world);
+            return (edits == null) ? new ArrayList<Edit>() : new ArrayList<Edit>(edits);
+        }
+    }
+
+    /**
+     * Writes the queued edits of a world in one transaction, in the order
+     * they were recorded. Edits that could not be written are queued again
+     * ahead of newer ones, for the next save.
+     *
+     * @return boolean, false if the edits could not be written.
+     */
+    private synchronized boolean flush(String world) {
+        List<Edit> edits;
+
+        synchronized (this.Queued) {
+            edits = this.Queued.remove(world);
+        }
+
+        if (edits == null) {
+            return true;
+        }
+
+        Connection connection = null;
+
+        try {
+            connection = this.connection();
+            connection.setAutoCommit(false);
+
+            for (Edit edit : edits) {
+                this.write(world, edit);
+            }
+
+            connection.commit();
+            return true;
+        } catch (SQLException e) {
+            rollback(connection);
+            log.log(Level.WARNING, "[Permissions] Could not write " + edits.size() + " edits of " + world + " to " + this.url, e);
+        } catch (IOException e) {
+            rollback(connection);
+            log.warning("[Permissions] Could not write " + edits.size() + " edits of " + world + ": " + e.getMessage());
+        } finally {
+            if (connection != null) {
+                try {
+                    connection.setAutoCommit(true);
+                } catch (SQLException e) {
+                }
+            }
+        }
+
+        synchronized (this.Queued) {
+            List<Edit> later = this.Queued.get(world);
+
+            if (later != null) {
+                edits.addAll(later);
+            }
+
+            this.Queued.put(world, edits);
+        }
+
+        return false;
+    }
+
+    private void write(String world, Edit edit) throws SQLException, IOException {
+        String key = edit.name.toLowerCase();
+
+        switch (edit.type) {
+            case ADD_USER_PERMISSION:
+                this.addUser(world, edit.name);
+                this.update(this.mergeNode, world, USER, key, edit.node);
+                break;
+            case REMOVE_USER_PERMISSION:
+                this.update("DELETE FROM permissions_nodes WHERE world = ? AND kind = ? AND name = ? AND node = ?", world, USER, key, edit.node);
+                break;
+            case ADD_GROUP_PERMISSION:
+                this.addGroup(world, edit.name);
+                this.update(this.mergeNode, world, GROUP, key, edit.node);
+                break;
+            case REMOVE_GROUP_PERMISSION:
+                this.update("DELETE FROM permissions_nodes WHERE world = ? AND kind = ? AND name = ? AND node = ?", world, GROUP, key, edit.node);
+                break;
+            case SET_USER_INFO:
+                this.addUser(world, edit.name);
+                this.setInfo(world, USER, key, edit.node, edit.value);
+                break;
+            case REMOVE_USER_INFO:
+                this.update("DELETE FROM permissions_info WHERE world = ? AND kind = ? AND name = ? AND node = ?", world, USER, key, edit.node);
+                break;
+            case SET_GROUP_INFO:
+                this.addGroup(world, edit.name);
+                this.setInfo(world, GROUP, key, edit.node, edit.value);
+                break;
+            case REMOVE_GROUP_INFO:
+                this.update("DELETE FROM permissions_info WHERE world = ? AND kind = ? AND name = ? AND node = ?", world, GROUP, key, edit.node);
+                break;
+        }
+    }
+
+    private Connection connection() throws IOException {
+        try {
+            if (this.connection != null && !this.connection.isClosed()) {
+                return this.connection;
+            }
+
+            Class.forName(this.driver);
+            this.connection = DriverManager.getConnection(this.url);
+
+            Statement statement = this.connection.createStatement();
+
+            try {
+                for (String table : SCHEMA) {
+                    statement.executeUpdate(table);
+                }
+            } finally {
+                statement.close();
+            }
+
+            return this.connection;
+        } catch (ClassNotFoundException e) {
+            throw new IOException("The JDBC driver " + this.driver + " is not on the classpath.");
+        } catch (SQLException e) {
+            throw new IOException("Could not open " + this.url + ": " + e.getMessage());
+        }
+    }
+
+    private boolean hasRows(String world) throws IOException {
+        try {
+            for (String table : new String[]{"permissions_groups", "permissions_users", "permissions_settings"}) {
+                ResultSet result = this.query("SELECT 1 FROM " + table + " WHERE world = ?", world);
+
+                try {
+                    if (result.next()) {
+                        return true;
+                    }
+                } finally {
+                    close(result);
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not read " + world + " from " + this.url + ": " + e.getMessage());
+        }
+
+        return false;
+    }
+
+    private void readSettings(String world, Configuration config, Entries entries) throws SQLException, IOException {
+        ResultSet result = this.query("SELECT setting, value, type FROM permissions_settings WHERE world = ?", world);
+
+        try {
+            while (result.next()) {
+                Object value = decode(result.getString(2), result.getString(3));
+
+                config.setProperty("plugin.permissions." + result.getString(1), value);
+                entries.setting(result.getString(1), value);
+            }
+        } finally {
+            close(result);
+        }
+    }
+
+    /**
+     * Reads the groups, with the queued edits of the world laid over them.
+     */
+    private void readGroups(String world, Configuration config, Entries entries) throws SQLException, IOException {
+        Map<String, List<String>> Inheritance = this.readLists("SELECT name, parent FROM permissions_inheritance WHERE world = ?", world);
+        Map<String, List<String>> Permissions = this.readLists("SELECT name, node FROM permissions_nodes WHERE world = ? AND kind = ?", world, GROUP);
+        Map<String, Map<String, Object>> Info = this.readInfo(world, GROUP);
+        Map<String, Row> Groups = new LinkedHashMap<String, Row>();
+
+        ResultSet result = this.query("SELECT name, display, is_default FROM permissions_groups WHERE world = ? ORDER BY name", world);
+
+        try {
+            while (result.next()) {
+                String name = result.getString(1);
+                Row group = new Row(result.getString(2));
+
+                group.Default = result.getInt(3) != 0;
+
+                if (Inheritance.containsKey(name)) {
+                    group.inheritance.addAll(Inheritance.get(name));
+                }
+
+                if (Permissions.containsKey(name)) {
+                    group.permissions.addAll(Permissions.get(name));
+                }
+
+                if (Info.containsKey(name)) {
+                    group.info.putAll(Info.get(name));
+                }
+
+                Groups.put(name, group);
+            }
+        } finally {
+            close(result);
+        }
+
+        for (Edit edit : this.queued(world)) {
+            if (!edit.isUser()) {
+                String name = edit.name.toLowerCase();
+                Row group = edit.apply(Groups.get(name));
+
+                if (group != null) {
+                    Groups.put(name, group);
+                }
+            }
+        }
+
+        for (Row group : Groups.values()) {
+            String path = "groups." + group.display;
+
+            config.setProperty(path + ".default", group.Default);
+            config.setProperty(path + ".inheritance", group.inheritance);
+            config.setProperty(path + ".permissions", group.permissions);
+            config.setProperty(path + ".info", group.info);
+
+            Object prefix = group.info.get("prefix");
+            Object suffix = group.info.get("suffix");
+
+            entries.group(group.display, group.Default, (prefix == null) ? null : prefix.toString(), (suffix == null) ? null : suffix.toString(),
+                    Boolean.TRUE.equals(group.info.get("build")), group.inheritance, group.permissions);
+        }
+    }
+
+    private Map<String, List<String>> readLists(String sql, Object... parameters) throws SQLException, IOException {
+        Map<String, List<String>> Lists = new HashMap<String, List<String>>();
+        ResultSet result = this.query(sql, parameters);
+
+        try {
+            while (result.next()) {
+                List<String> list = Lists.get(result.getString(1));
+
+                if (list == null) {
+                    list = new ArrayList<String>();
+                    Lists.put(result.getString(1), list);
+                }
+
+                list.add(result.getString(2));
+            }
+        } finally {
+            close(result);
+        }
+
+        return Lists;
+    }
+
+    private Map<String, Map<String, Object>> readInfo(String world, String kind) throws SQLException, IOException {
+        Map<String, Map<String, Object>> Info = new HashMap<String, Map<String, Object>>();
+        ResultSet result = this.query("SELECT name, node, value, type FROM permissions_info WHERE world = ? AND kind = ?", world, kind);
+
+        try {
+            while (result.next()) {
+                Map<String, Object> info = Info.get(result.getString(1));
+
+                if (info == null) {
+                    info = new HashMap<String, Object>();
+                    Info.put(result.getString(1), info);
+                }
+
+                info.put(result.getString(2), decode(result.getString(3), result.getString(4)));
+            }
+        } finally {
+            close(result);
+        }
+
+        return Info;
+    }
+
+    /**
+     * Copies a world file into the tables, in one transaction.
+     */
+    private void importWorld(final String world) throws IOException {
+        final Connection connection = this.connection();
+        final Set<String> users = new HashSet<String>();
+        long start = System.nanoTime();
+
+        try {
+            connection.setAutoCommit(false);
+
+            Source source = new YamlStorage(this.folder).read(world, new Entries() {
+                public void setting(String key, Object value) {
+                    if (value != null) {
+                        run("INSERT INTO permissions_settings (world, setting, value, type) VALUES (?, ?, ?, ?)", world, key, encode(value), typeOf(value));
+                    }
+                }
+
+                public void group(String key, boolean Default, String prefix, String suffix, boolean build, List<String> inheritance, List<String> permissions) {
+                    String name = key.toLowerCase();
+
+                    run("DELETE FROM permissions_groups WHERE world = ? AND name = ?", world, name);
+                    run("INSERT INTO permissions_groups (world, name, display, is_default) VALUES (?, ?, ?, ?)", world, name, key, Default ? 1 : 0);
+
+                    for (String parent : new HashSet<String>((inheritance == null) ? new ArrayList<String>() : inheritance)) {
+                        run("INSERT INTO permissions_inheritance (world, name, parent) VALUES (?, ?, ?)", world, name, parent);
+                    }
+
+                    nodes(GROUP, name, permissions);
+                }
+
+                public void user(String key, String group, List<String> permissions) {
+                    String name = key.toLowerCase();
+
+                    if (users.add(name)) {
+                        run("INSERT INTO permissions_users (world, name, display, grp) VALUES (?, ?, ?, ?)", world, name, key, group);
+                        nodes(USER, name, permissions);
+                    }
+                }
+
+                private void nodes(String kind, String name, List<String> permissions) {
+                    if (permissions != null) {
+                        for (String node : new LinkedHashSet<String>(permissions)) {
+                            run("INSERT INTO permissions_nodes (world, kind, name, node) VALUES (?, ?, ?, ?)", world, kind, name, node);
+                        }
+                    }
+                }
+            });
+
+            Configuration config = source.get();
+            this.importInfo(world, GROUP, config, "groups");
+            this.importInfo(world, USER, config, "users");
+
+            connection.commit();
+            log.info("[Permissions] Imported " + users.size() + " users of " + world + " into " + this.url + " in "
+                    + ((System.nanoTime() - start) / 1000000L) + " ms.");
+        } catch (SQLException e) {
+            rollback(connection);
+            throw new IOException("Could not import " + world + " into " + this.url + ": " + e.getMessage());
+        } catch (IllegalStateException e) {
+            rollback(connection);
+            throw new IOException("Could not import " + world + " into " + this.url + ": " + e.getMessage());
+        } finally {
+            try {
+                connection.setAutoCommit(true);
+            } catch (SQLException e) {
+            }
+        }
+    }
+
+    private void importInfo(String world, String kind, Configuration config, String section) throws SQLException, IOException {
+        List<String> keys = config.getKeys(section);
+
+        if (keys == null) {
+            return;
+        }
+
+        for (String key : keys) {
+            Object info = config.getProperty(section + "." + key + ".info");
+
+            if (info instanceof Map) {
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) info).entrySet()) {
+                    if (entry.getValue() != null && !(entry.getValue() instanceof Map) && !(entry.getValue() instanceof List)) {
+                        this.setInfo(world, kind, key.toLowerCase(), entry.getKey().toString(), entry.getValue());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs an update for an import callback, which cannot throw SQLException.
+     */
+    private void run(String sql, Object... parameters) {
+        try {
+            this.update(sql, parameters);
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Adds the row of a user unless there is one, which keeps its group.
+     */
+    private void addUser(String world, String name) throws SQLException, IOException {
+        if (!this.exists("SELECT 1 FROM permissions_users WHERE world = ? AND name = ?", world, name.toLowerCase())) {
+            this.update("INSERT INTO permissions_users (world, name, display, grp) VALUES (?, ?, ?, NULL)", world, name.toLowerCase(), name);
+        }
+    }
+
+    /**
+     * Adds the row of a group unless there is one, which keeps its default flag.
+     */
+    private void addGroup(String world, String name) throws SQLException, IOException {
+        if (!this.exists("SELECT 1 FROM permissions_groups WHERE world = ? AND name = ?", world, name.toLowerCase())) {
+            this.update("INSERT INTO permissions_groups (world, name, display, is_default) VALUES (?, ?, ?, 0)", world, name.toLowerCase(), name);
+        }
+    }
+
+    private void setInfo(String world, String kind, String name, String node, Object value) throws SQLException, IOException {
+        this.update(this.mergeInfo, world, kind, name, node, encode(value), typeOf(value));
+    }
+
+    private boolean exists(String sql, Object... parameters) throws SQLException, IOException {
+        ResultSet result = this.query(sql, parameters);
+
+        try {
+            return result.next();
+        } finally {
+            close(result);
+        }
+    }
+
+    private int update(String sql, Object... parameters) throws SQLException, IOException {
+        PreparedStatement statement = this.prepare(sql, parameters);
+
+        try {
+            return statement.executeUpdate();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Runs a query. Closing the result closes its statement, see close().
+     */
+    private ResultSet query(String sql, Object... parameters) throws SQLException, IOException {
+        PreparedStatement statement = this.prepare(sql, parameters);
+
+        try {
+            return statement.executeQuery();
+        } catch (SQLException e) {
+            statement.close();
+            throw e;
+        }
+    }
+
+    private PreparedStatement prepare(String sql, Object... parameters) throws SQLException, IOException {
+        PreparedStatement statement = this.connection().prepareStatement(sql);
+
+        for (int i = 0; i < parameters.length; i++) {
+            statement.setObject(i + 1, parameters[i]);
+        }
+
+        return statement;
+    }
+
+    private static void close(ResultSet result) throws SQLException {
+        Statement statement = result.getStatement();
+        result.close();
+
+        if (statement != null) {
+            statement.close();
+        }
+    }
+
+    private static void rollback(Connection connection) {
+        if (connection == null) {
+            return;
+        }
+
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+        }
+    }
+
+    private static String encode(Object value) {
+        return (value == null) ? null : value.toString();
+    }
+
+    /**
+     * Grabs the type an info value or setting is stored as, so it reads
+     * back as the same type.
+     */
+    private static String typeOf(Object value) {
+        if (value instanceof Boolean) {
+            return "b";
+        } else if (value instanceof Integer) {
+            return "i";
+        } else if (value instanceof Long) {
+            return "l";
+        } else if (value instanceof Double || value instanceof Float) {
+            return "d";
+        }
+
+        return "s";
+    }
+
+    private static Object decode(String value, String type) {
+        if (value == null) {
+            return null;
+        }
+
+        try {
+            if (type.equals("b")) {
+                return Boolean.valueOf(value);
+            } else if (type.equals("i")) {
+                return Integer.valueOf(value);
+            } else if (type.equals("l")) {
+                return Long.valueOf(value);
+            } else if (type.equals("d")) {
+                return Double.valueOf(value);
+            }
+        } catch (NumberFormatException e) {
+        }
+
+        return value;
+    }
+
+    /**
+     * An edit waiting for the next save of its world.
+     */
+    private static final class Edit {
+        private final byte type;
+        private final String name;
+        private final String node;
+        private final Object value;
+
+        private Edit(byte type, String name, String node, Object value) {
+            this.type = type;
+            this.name = name;
+            this.node = node;
+            this.value = value;
+        }
+
+        private boolean isUser() {
+            return this.type == ADD_USER_PERMISSION || this.type == REMOVE_USER_PERMISSION
+                    || this.type == SET_USER_INFO || this.type == REMOVE_USER_INFO;
+        }
+
+        /**
+         * Applies the edit to the user or group it names, as write() will.
+         *
+         * @param row - The user or group as read, null if there is none.
+         * @return Row, null if there still is none.
+         */
+        private Row apply(Row row) {
+            switch (this.type) {
+                case ADD_USER_PERMISSION:
+                case ADD_GROUP_PERMISSION:
+                    row = (row == null) ? new Row(this.name) : row;
+
+                    if (!row.permissions.contains(this.node)) {
+                        row.permissions.add(this.node);
+                    }
+                    break;
+                case SET_USER_INFO:
+                case SET_GROUP_INFO:
+                    row = (row == null) ? new Row(this.name) : row;
+                    row.info.put(this.node, this.value);
+                    break;
+                case REMOVE_USER_PERMISSION:
+                case REMOVE_GROUP_PERMISSION:
+                    if (row != null) {
+                        row.permissions.removeAll(Collections.singleton(this.node));
+                    }
+                    break;
+                case REMOVE_USER_INFO:
+                case REMOVE_GROUP_INFO:
+                    if (row != null) {
+                        row.info.remove(this.node);
+                    }
+                    break;
+            }
+
+            return row;
+        }
+    }
+
+    /**
+     * A user or group as read, with the queued edits applied.
+     */
+    private static final class Row {
+        private final String display;
+        private final List<String> inheritance = new ArrayList<String>();
+        private final List<String> permissions = new ArrayList<String>();
+        private final Map<String, Object> info = new HashMap<String, Object>();
+        private String group = null;
+        private boolean Default = false;
+
+        private Row(String display) {
+            this.display = display;
+        }
+    }
+}
@@ -0,0 +1,378 @@
+package com.nijiko.permissions;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Permissions 2.x
+ * Copyright (C) 2011  Matt 'The Yeti' Burnett <admin@theyeticave.net>
+ * Original Credit & Copyright (C) 2010 Nijikokun <nijikokun@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Permissions Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Permissions Public License for more details.
+ *
+ * You should have received a copy of the GNU Permissions Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * The users of a world, kept packed until they are checked.
+ * <br /><br />
+ * Each user is one byte array: their group, as an index into the table's
+ * group names, and their node ids, delta encoded. A user checked through
+ * {@link #nodes(String)} is expanded into a {@link NodeSet} once and kept
+ * that way until they go unchecked for the idle time, when they are
+ * dropped back to their packed form. Dormant accounts so cost little more
+ * than their name.
+ * <br /><br />
+ * A table of a storage that reads users on demand starts out empty, and
+ * remembers which users were looked up, found or not, so each is read once.
+ * <br /><br />
+ * A table never changes once built. Edits build a new one sharing the
+ * packed users, through a {@link SharedMap}, and the expanded ones that
+ * did not change, so an edit costs the same however many users there are.
+ *
+ * @author TheYeti
+ */
+final class UserTable {
+
+    private final SharedMap<byte[]> packed;
+    private final String[] groups;
+    private final SharedMap<Integer> indexes;
+    private final SharedMap<Boolean> missing;
+    private final Expansions expansions;
+
+    private UserTable(SharedMap<byte[]> packed, String[] groups, SharedMap<Integer> indexes, SharedMap<Boolean> missing, Expansions expansions) {
+        this.packed = packed;
+        this.groups = groups;
+        this.indexes = indexes;
+        this.missing = missing;
+        this.expansions = expansions;
+    }
+
+    /**
+     * Packs the users of a world.
+     *
+     * @param permissions - Lowercased user name to its own node ids.
+     * @param groups - Lowercased user name to its group as written.
+     * @param idle - Milliseconds an expanded user is kept unchecked, 0 to keep them.
+     * @return UserTable
+     */
+    static UserTable of(Map<String, NodeSet> permissions, Map<String, String> groups, long idle) {
+        return of(permissions, groups, idle, false);
+    }
+
+    /**
+     * Packs the users of a world.
+     *
+     * @param permissions - Lowercased user name to its own node ids.
+     * @param groups - Lowercased user name to its group as written.
+     * @param idle - Milliseconds an expanded user is kept unchecked, 0 to keep them.
+     * @param onDemand - Whether the other users are read when first needed, rather than not there.
+     * @return UserTable
+     */
+    static UserTable of(Map<String, NodeSet> permissions, Map<String, String> groups, long idle, boolean onDemand) {
+        Map<String, Integer> indexes = new HashMap<String, Integer>();
+        Map<String, byte[]> packed = new HashMap<String, byte[]>(permissions.size() * 4 / 3 + 1);
+        String[] names = new String[0];
+
+        for (Map.Entry<String, NodeSet> user : permissions.entrySet()) {
+            String group = groups.get(user.getKey());
+            int index = 0;
+
+            if (group != null) {
+                Integer known = indexes.get(group);
+
+                if (known == null) {
+                    names = Arrays.copyOf(names, names.length + 1);
+                    names[names.length - 1] = group;
+                    known = names.length;
+                    indexes.put(group, known);
+                }
+
+                index = known;
+            }
+
+            packed.put(user.getKey(), pack(index, user.getValue()));
+        }
+
+        return new UserTable(SharedMap.of(packed), names, SharedMap.of(indexes),
+                onDemand ? SharedMap.<Boolean>empty() : null, new Expansions(idle));
+    }
+
+    /**
+     * Grabs the nodes of a user, expanding them on first use.
+     *
+     * @param name - Lowercased user name.
+     * @return NodeSet, null if there is no such user.
+     */
+    NodeSet nodes(String name) {
+        byte[] packed = this.packed.get(name);
+
+        if (packed == null) {
+            return null;
+        }
+
+        return this.expansions.get(name, packed);
+    }
+
+    /**
+     * Grabs the packed form of a user, the same array for as long as the
+     * user is not edited.
+     *
+     * @param name - Lowercased user name.
+     * @return byte[], null if there is no such user.
+     */
+    byte[] packed(String name) {
+        return this.packed.get(name);
+    }
+
+    Set<String> names() {
+        return Collections.unmodifiableSet(this.packed.keySet());
+    }
+
+    boolean contains(String name) {
+        return this.packed.containsKey(name);
+    }
+
+    /**
+     * Checks whether a user was looked up, always true unless users are
+     * read on demand.
+     *
+     * @param name - Lowercased user name.
+     * @return boolean
+     */
+    boolean knows(String name) {
+        return this.missing == null || this.packed.containsKey(name) || this.missing.containsKey(name);
+    }
+
+    int size() {
+        return this.packed.size();
+    }
+
+    /**
+     * Grabs the group of a user.
+     *
+     * @param name - Lowercased user name.
+     * @return String as written, null if the user has none or does not exist.
+     */
+    String group(String name) {
+        byte[] packed = this.packed.get(name);
+        return (packed == null) ? null : this.groupOf(packed);
+    }
+
+    /**
+     * Replaces the nodes of a user, keeping their group.
+     *
+     * @param name - Lowercased user name.
+     * @param nodes
+     * @return UserTable
+     */
+    UserTable with(String name, NodeSet nodes) {
+        return this.with(name, nodes, this.group(name));
+    }
+
+    /**
+     * Replaces a user.
+     *
+     * @param name - Lowercased user name.
+     * @param nodes
+     * @param group - Group as written, null for none.
+     * @return UserTable
+     */
+    UserTable with(String name, NodeSet nodes, String group) {
+        String[] names = this.groups;
+        SharedMap<Integer> indexes = this.indexes;
+        int index = 0;
+
+        if (group != null) {
+            Integer known = indexes.get(group);
+
+            if (known == null) {
+                names = Arrays.copyOf(names, names.length + 1);
+                names[names.length - 1] = group;
+                known = names.length;
+                indexes = indexes.with(group, known);
+            }
+
+            index = known;
+        }
+
+        return new UserTable(this.packed.with(name, pack(index, nodes)), names, indexes,
+                (this.missing == null) ? null : this.missing.without(name), this.expansions);
+    }
+
+    /**
+     * Drops a user. One read on demand is read again the next time they
+     * are needed.
+     *
+     * @param name - Lowercased user name.
+     * @return UserTable
+     */
+    UserTable without(String name) {
+        SharedMap<byte[]> packed = this.packed.without(name);
+        SharedMap<Boolean> missing = (this.missing == null) ? null : this.missing.without(name);
+
+        if (packed == this.packed && missing == this.missing) {
+            return this;
+        }
+
+        return new UserTable(packed, this.groups, this.indexes, missing, this.expansions);
+    }
+
+    /**
+     * Records that a user looked up on demand does not exist, so they are
+     * not read again.
+     *
+     * @param name - Lowercased user name.
+     * @return UserTable, this one when users are not read on demand.
+     */
+    UserTable missing(String name) {
+        if (this.missing == null) {
+            return this;
+        }
+
+        return new UserTable(this.packed.without(name), this.groups, this.indexes, this.missing.with(name, Boolean.TRUE), this.expansions);
+    }
+
+    private String groupOf(byte[] packed) {
+        int index = readVarint(packed, new int[1]);
+        return (index == 0) ? null : this.groups[index - 1];
+    }
+
+    private static byte[] pack(int group, NodeSet nodes) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(16);
+        BitSet bits = (nodes == null) ? new BitSet() : nodes.toBitSet();
+
+        writeVarint(output, group);
+        writeVarint(output, bits.cardinality());
+
+        int last = 0;
+
+        for (int id = bits.nextSetBit(0); id >= 0; id = bits.nextSetBit(id + 1)) {
+            writeVarint(output, id - last);
+            last = id;
+        }
+
+        return output.toByteArray();
+    }
+
+    static NodeSet unpack(byte[] packed) {
+        int[] position = new int[1];
+        readVarint(packed, position);
+
+        int count = readVarint(packed, position);
+
+        if (count == 0) {
+            return NodeSet.EMPTY;
+        }
+
+        BitSet bits = new BitSet();
+        int id = 0;
+
+        for (int i = 0; i < count; i++) {
+            id += readVarint(packed, position);
+            bits.set(id);
+        }
+
+        return NodeSet.of(bits);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream output, int value) {
+        while ((value & ~0x7F) != 0) {
+            output.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        output.write(value);
+    }
+
+    private static int readVarint(byte[] packed, int[] position) {
+        int value = 0;
+
+        for (int shift = 0; ; shift += 7) {
+            byte b = packed[position[0]++];
+            value |= (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * The expanded users of a world, shared by every table an edit derives
+     * from the same load. An entry is only used while it was expanded from
+     * the packed array the table holds, so a table never sees another's
+     * edit.
+     */
+    private static final class Expansions {
+        private final Map<String, Expanded> expanded = new ConcurrentHashMap<String, Expanded>();
+        private final AtomicLong swept = new AtomicLong(System.currentTimeMillis());
+        private final long idle;
+
+        private Expansions(long idle) {
+            this.idle = idle;
+        }
+
+        private NodeSet get(String name, byte[] packed) {
+            long now = System.currentTimeMillis();
+            Expanded entry = this.expanded.get(name);
+
+            if (entry == null || entry.packed != packed) {
+                entry = new Expanded(packed, unpack(packed), now);
+                this.expanded.put(name, entry);
+            } else if (now - entry.used > 1000L) {
+                entry.used = now;
+            }
+
+            this.sweep(now);
+            return entry.nodes;
+        }
+
+        /**
+         * Drops the users that went unchecked for the idle time, at most
+         * twice per idle time and by one thread at a time.
+         */
+        private void sweep(long now) {
+            long last = this.swept.get();
+
+            if (this.idle <= 0 || now - last < Math.max(1000L, this.idle / 2) || !this.swept.compareAndSet(last, now)) {
+                return;
+            }
+
+            for (Iterator<Expanded> it = this.expanded.values().iterator(); it.hasNext(); ) {
+                if (now - it.next().used > this.idle) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private static final class Expanded {
+        private final byte[] packed;
+        private final NodeSet nodes;
+        private volatile long used;
+
+        private Expanded(byte[] packed, NodeSet nodes, long used) {
+            this.packed = packed;
+            this.nodes = nodes;
+            this.used = used;
+        }
+    }
+}
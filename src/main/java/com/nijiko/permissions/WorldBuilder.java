@@ -0,0 +1,161 @@
+package com.nijiko.permissions;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Permissions 2.x
+ * Copyright (C) 2011  Matt 'The Yeti' Burnett <admin@theyeticave.net>
+ * Original Credit & Copyright (C) 2010 Nijikokun <nijikokun@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Permissions Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Permissions Public License for more details.
+ *
+ * You should have received a copy of the GNU Permissions Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Collects the groups and users of a world, one entry at a time, into the
+ * maps of a {@link WorldModel}. Users are packed into a {@link UserTable}
+ * at the end.
+ * <br /><br />
+ * Entries may come in any order. Users without a group are given the
+ * default group once every group is known. The collected state is
+ * package-private so that {@link WorldSnapshot} can store and restore it.
+ *
+ * @author TheYeti
+ */
+final class WorldBuilder implements PermissionStorage.Entries {
+
+    private final String world;
+    private final boolean onDemand;
+    String Base = "";
+    NodeDictionary Nodes = new NodeDictionary();
+    Map<String, NodeSet> UserPermissions = new HashMap<String, NodeSet>();
+    Map<String, String> UserGroups = new HashMap<String, String>();
+    Map<String, NodeSet> Groups = new HashMap<String, NodeSet>();
+    Map<String, Object[]> GroupsData = new HashMap<String, Object[]>();
+    Map<String, Set<String>> GroupsInheritance = new HashMap<String, Set<String>>();
+    Set<String> Unassigned = new HashSet<String>();
+    final Map<String, Object> Settings = new HashMap<String, Object>();
+
+    WorldBuilder(String world) {
+        this(world, false);
+    }
+
+    /**
+     * @param world
+     * @param onDemand - Whether the storage leaves the users out, for them to be read when first needed.
+     */
+    WorldBuilder(String world, boolean onDemand) {
+        this.world = world;
+        this.onDemand = onDemand;
+    }
+
+    /**
+     * Takes over the entries collected by another builder, e.g. one
+     * restored from a snapshot. The other builder must not be used
+     * afterwards.
+     *
+     * @param other
+     */
+    void restore(WorldBuilder other) {
+        this.Base = other.Base;
+        this.Nodes = other.Nodes;
+        this.UserPermissions = other.UserPermissions;
+        this.UserGroups = other.UserGroups;
+        this.Groups = other.Groups;
+        this.GroupsData = other.GroupsData;
+        this.GroupsInheritance = other.GroupsInheritance;
+        this.Unassigned = other.Unassigned;
+    }
+
+    /**
+     * Adds a setting under plugin.permissions.
+     *
+     * @param key - e.g. "cache.size".
+     * @param value
+     */
+    public void setting(String key, Object value) {
+        this.Settings.put(key, value);
+    }
+
+    /**
+     * Adds a group.
+     *
+     * @param key - Group name as written.
+     * @param Default - Whether this is the default group, the first one wins.
+     * @param prefix
+     * @param suffix
+     * @param build
+     * @param inheritance
+     * @param permissions
+     */
+    public void group(String key, boolean Default, String prefix, String suffix, boolean build, List<String> inheritance, List<String> permissions) {
+        String name = key.toLowerCase();
+
+        if (Default && this.Base.isEmpty()) {
+            this.Base = name;
+        }
+
+        this.Groups.put(name, this.Nodes.compile(permissions));
+        this.GroupsData.put(name, new Object[]{key, prefix, suffix, build});
+
+        if (inheritance != null && inheritance.size() > 0) {
+            this.GroupsInheritance.put(name, new HashSet<String>(inheritance));
+        } else {
+            this.GroupsInheritance.remove(name);
+        }
+    }
+
+    /**
+     * Adds a user.
+     *
+     * @param key - User name as written.
+     * @param group - Group as written, null for the default group, "" for none.
+     * @param permissions
+     */
+    public void user(String key, String group, List<String> permissions) {
+        String name = key.toLowerCase();
+
+        this.UserGroups.remove(name);
+        this.Unassigned.remove(name);
+
+        if (group == null) {
+            this.Unassigned.add(name);
+        } else if (!group.isEmpty()) {
+            this.UserGroups.put(name, group);
+        }
+
+        this.UserPermissions.put(name, this.Nodes.compile(permissions));
+    }
+
+    /**
+     * Builds the model. The builder must not be used afterwards.
+     *
+     * @param source
+     * @param copies - World the model copies, null if it has its own data.
+     * @param cache
+     * @param idle - Milliseconds a checked user stays expanded, 0 to keep them.
+     * @return WorldModel
+     */
+    WorldModel build(PermissionStorage.Source source, String copies, DecisionCache cache, long idle) {
+        for (String name : this.Unassigned) {
+            this.UserGroups.put(name, this.Base);
+        }
+
+        return new WorldModel(this.world, source, copies, this.Base, this.Nodes,
+                UserTable.of(this.UserPermissions, this.UserGroups, idle, this.onDemand), this.Groups, this.GroupsData, this.GroupsInheritance, cache);
+    }
+}
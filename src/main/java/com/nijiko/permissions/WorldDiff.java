@@ -0,0 +1,322 @@
+package com.nijiko.permissions;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Permissions 2.x
+ * Copyright (C) 2011  Matt 'The Yeti' Burnett <admin@theyeticave.net>
+ * Original Credit & Copyright (C) 2010 Nijikokun <nijikokun@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Permissions Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Permissions Public License for more details.
+ *
+ * You should have received a copy of the GNU Permissions Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * What changed between two models of the same world, for dropping only the
+ * cached decisions a reload can change.
+ * <br /><br />
+ * Users and groups are compared by node, so the two models may number
+ * their nodes differently. A decision of a player is dropped when the
+ * player now resolves through another group, when a group they resolve
+ * through was added, removed or inherits differently, or when a node added
+ * to or removed from them or one of their groups covers it.
+ *
+ * @author TheYeti
+ */
+final class WorldDiff {
+
+    private final WorldModel before;
+    private final WorldModel after;
+    private final boolean everything;
+    private final Map<String, Set<String>> Users = new HashMap<String, Set<String>>();
+    private final Map<String, Set<String>> Groups = new HashMap<String, Set<String>>();
+    private final Set<String> Restructured = new HashSet<String>();
+
+    private WorldDiff(WorldModel before, WorldModel after) {
+        this.before = before;
+        this.after = after;
+        this.everything = before.getGroups().isEmpty() != after.getGroups().isEmpty();
+
+        if (this.everything) {
+            return;
+        }
+
+        boolean sameIds = sameIds(before.getNodes(), after.getNodes());
+
+        this.compare(before.getUsers(), after.getUsers(), sameIds);
+        this.compare(before.getGroups(), after.getGroups(), sameIds, this.Groups);
+
+        Set<String> names = new HashSet<String>(before.getGroups().keySet());
+        names.addAll(after.getGroups().keySet());
+
+        for (String group : names) {
+            if (!before.getGroups().containsKey(group) || !after.getGroups().containsKey(group)
+                    || !lowercased(before.getGroupsInheritance().get(group)).equals(lowercased(after.getGroupsInheritance().get(group)))) {
+                this.Restructured.add(group);
+            }
+        }
+    }
+
+    /**
+     * Compares two models of a world.
+     *
+     * @param before - Live model.
+     * @param after - Model replacing it.
+     * @return WorldDiff
+     */
+    static WorldDiff of(WorldModel before, WorldModel after) {
+        return new WorldDiff(before, after);
+    }
+
+    /**
+     * Checks whether no decision can have changed. The default group is not
+     * compared here, as it only matters to the players resolving through it.
+     *
+     * @return boolean
+     */
+    boolean isEmpty() {
+        return !this.everything && this.Users.isEmpty() && this.Groups.isEmpty() && this.Restructured.isEmpty()
+                && this.before.getBase().equalsIgnoreCase(this.after.getBase());
+    }
+
+    /**
+     * Selects the cached decisions that may have changed.
+     *
+     * @param players - Names of the player ids in the cache.
+     * @param nodes - Names of the node ids in the cache.
+     * @return DecisionCache.Filter
+     */
+    DecisionCache.Filter filter(final NameTable players, final NameTable nodes) {
+        final Map<Integer, Set<String>> Changed = new HashMap<Integer, Set<String>>();
+        final Set<String> all = new HashSet<String>();
+
+        return new DecisionCache.Filter() {
+            public boolean matches(int player, int node) {
+                Set<String> changed = Changed.get(player);
+
+                if (changed == null) {
+                    String name = players.getName(player);
+                    changed = (name == null) ? all : changes(name, all);
+                    Changed.put(player, changed);
+                }
+
+                if (changed == all) {
+                    return true;
+                }
+
+                String permission = nodes.getName(node);
+
+                if (permission == null) {
+                    return true;
+                }
+
+                for (String edited : changed) {
+                    if (NodeDictionary.covers(edited, permission)) {
+                        return true;
+                    }
+                }
+
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Gathers the nodes that changed for a player.
+     *
+     * @param name - Lowercased player name.
+     * @param all - Returned when every decision of the player may have changed.
+     * @return Set of nodes as written.
+     */
+    private Set<String> changes(String name, Set<String> all) {
+        // A player the new model has not read yet may be in any group by now.
+        if (this.everything || !this.after.getUsers().knows(name)) {
+            return all;
+        }
+
+        String group = groupKey(this.before, name);
+
+        if (!group.equals(groupKey(this.after, name))) {
+            return all;
+        }
+
+        Set<String> Changed = new HashSet<String>();
+        Set<String> Through = new HashSet<String>();
+
+        Through.add(group);
+        Through.addAll(this.before.getResolved().getAncestors(group));
+        Through.addAll(this.after.getResolved().getAncestors(group));
+
+        for (String ancestor : Through) {
+            if (this.Restructured.contains(ancestor)) {
+                return all;
+            }
+
+            Set<String> nodes = this.Groups.get(ancestor);
+
+            if (nodes != null) {
+                Changed.addAll(nodes);
+            }
+        }
+
+        Set<String> nodes = this.Users.get(name);
+
+        if (nodes != null) {
+            Changed.addAll(nodes);
+        }
+
+        return Changed;
+    }
+
+    /**
+     * Lowercased group a player resolves through, as Control does.
+     */
+    private static String groupKey(WorldModel model, String name) {
+        String group = null;
+
+        if (model.getUsers().contains(name)) {
+            group = model.getUsers().group(name);
+        }
+
+        if (group == null) {
+            group = model.getBase();
+        }
+
+        return (group == null) ? "" : group.toLowerCase();
+    }
+
+    /**
+     * Records, per group, the nodes only one of the models has.
+     */
+    private void compare(Map<String, NodeSet> before, Map<String, NodeSet> after, boolean sameIds, Map<String, Set<String>> Changed) {
+        Set<String> names = new HashSet<String>(before.keySet());
+        names.addAll(after.keySet());
+
+        for (String name : names) {
+            NodeSet old = before.get(name);
+            NodeSet current = after.get(name);
+
+            if (sameIds && old == current) {
+                continue;
+            }
+
+            this.compare(name, old, current, Changed);
+        }
+    }
+
+    /**
+     * Records the nodes only one of the models has per user. While both
+     * models number their nodes alike, a user whose packed form holds the
+     * same bytes and group is skipped before anything is unpacked, so a
+     * reload only decodes the users that changed.
+     */
+    private void compare(UserTable before, UserTable after, boolean sameIds) {
+        for (String name : after.names()) {
+            this.compare(name, before, after, sameIds);
+        }
+
+        for (String name : before.names()) {
+            if (!after.contains(name)) {
+                this.compare(name, before, after, sameIds);
+            }
+        }
+    }
+
+    private void compare(String name, UserTable before, UserTable after, boolean sameIds) {
+        byte[] old = before.packed(name);
+        byte[] current = after.packed(name);
+
+        // The group is packed as an index into the table's own group names, so it is compared by name.
+        if (sameIds && (old == current || (Arrays.equals(old, current) && equal(before.group(name), after.group(name))))) {
+            return;
+        }
+
+        this.compare(name, (old == null) ? null : UserTable.unpack(old), (current == null) ? null : UserTable.unpack(current), this.Users);
+
+        // A user moved to another group keeps their nodes, yet every decision of theirs may change.
+        if (!this.Users.containsKey(name) && !groupKey(this.before, name).equals(groupKey(this.after, name))) {
+            this.Users.put(name, new HashSet<String>());
+        }
+    }
+
+    private static boolean equal(String a, String b) {
+        return (a == null) ? b == null : a.equals(b);
+    }
+
+    private void compare(String name, NodeSet old, NodeSet current, Map<String, Set<String>> Changed) {
+        Set<String> removed = this.names(this.before.getNodes(), old);
+        Set<String> added = this.names(this.after.getNodes(), current);
+        Set<String> common = new HashSet<String>(removed);
+
+        common.retainAll(added);
+        removed.addAll(added);
+        removed.removeAll(common);
+
+        if (!removed.isEmpty()) {
+            Changed.put(name, removed);
+        }
+    }
+
+    private Set<String> names(NodeDictionary dictionary, NodeSet set) {
+        Set<String> names = new HashSet<String>();
+
+        if (set != null) {
+            BitSet bits = set.toBitSet();
+
+            for (int id = bits.nextSetBit(0); id >= 0; id = bits.nextSetBit(id + 1)) {
+                names.add(dictionary.getNode(id));
+            }
+        }
+
+        return names;
+    }
+
+    /**
+     * Checks whether every id of the first dictionary means the same node in
+     * the second, as it does when the second was copied from the first.
+     */
+    private static boolean sameIds(NodeDictionary before, NodeDictionary after) {
+        if (before == after) {
+            return true;
+        }
+
+        if (after.size() < before.size()) {
+            return false;
+        }
+
+        for (int id = 0; id < before.size(); id++) {
+            if (!before.getNode(id).equals(after.getNode(id))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static Set<String> lowercased(Set<String> groups) {
+        Set<String> lowercased = new HashSet<String>();
+
+        if (groups != null) {
+            for (String group : groups) {
+                lowercased.add(group.toLowerCase());
+            }
+        }
+
+        return lowercased;
+    }
+}
@@ -0,0 +1,193 @@
+package com.nijiko.permissions;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import org.bukkit.util.config.Configuration;
+
+/**
+ * Permissions 2.x
+ * Copyright (C) 2011  Matt 'The Yeti' Burnett <admin@theyeticave.net>
+ * Original Credit & Copyright (C) 2010 Nijikokun <nijikokun@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Permissions Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Permissions Public License for more details.
+ *
+ * You should have received a copy of the GNU Permissions Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Snapshot of everything loaded for one world.
+ * <br /><br />
+ * A model never changes once built. Loads and edits build a new model and
+ * publish it with a single put, so a permission check always works from one
+ * consistent snapshot: node ids, user and group sets and the resolved
+ * inheritance all come from the same load. Edits share the decision cache
+ * of the model they replace, since they invalidate it themselves. A reload
+ * carries the cache over as well and drops only the decisions a
+ * {@link WorldDiff} of the two models finds may have changed, unless the
+ * cache size or the world it copies changed, which starts an empty one.
+ * <br /><br />
+ * Worlds read from the event stream do not build their configuration
+ * until something asks for it, such as an info lookup, an edit or a save.
+ *
+ * @author TheYeti
+ */
+final class WorldModel {
+
+    private final String world;
+    private final PermissionStorage.Source source;
+    private final String copies;
+    private final String base;
+    private final NodeDictionary nodes;
+    private final UserTable users;
+    private final SharedMap<NodeSet> groups;
+    private final SharedMap<Object[]> groupsData;
+    private final Map<String, Set<String>> groupsInheritance;
+    private final GroupInheritance resolved;
+    private final DecisionCache cache;
+
+    /**
+     * Builds the model of a loaded world, resolving its group inheritance.
+     *
+     * @param world
+     * @param source
+     * @param copies - World this one copies, null if it has its own data.
+     * @param base - Lowercased default group, "" if there is none.
+     * @param nodes
+     * @param users
+     * @param groups - Lowercased group name to its own node ids.
+     * @param groupsData - Lowercased group name to {name, prefix, suffix, build}.
+     * @param groupsInheritance - Lowercased group name to the groups it inherits.
+     * @param cache
+     */
+    WorldModel(String world, PermissionStorage.Source source, String copies, String base, NodeDictionary nodes,
+            UserTable users, Map<String, NodeSet> groups,
+            Map<String, Object[]> groupsData, Map<String, Set<String>> groupsInheritance, DecisionCache cache) {
+        this(world, source, copies, base, nodes, users, groups, groupsData, groupsInheritance,
+                new GroupInheritance(world, groups, groupsInheritance), cache);
+    }
+
+    private WorldModel(String world, PermissionStorage.Source source, String copies, String base, NodeDictionary nodes,
+            UserTable users, Map<String, NodeSet> groups,
+            Map<String, Object[]> groupsData, Map<String, Set<String>> groupsInheritance, GroupInheritance resolved,
+            DecisionCache cache) {
+        this.world = world;
+        this.source = source;
+        this.copies = copies;
+        this.base = base;
+        this.nodes = nodes;
+        this.users = users;
+        this.groups = SharedMap.of(groups);
+        this.groupsData = SharedMap.of(groupsData);
+        this.groupsInheritance = Collections.unmodifiableMap(groupsInheritance);
+        this.resolved = resolved;
+        this.cache = cache;
+    }
+
+    /**
+     * Replaces the users.
+     *
+     * @param nodes - Dictionary the new sets were interned into.
+     * @param users
+     * @return WorldModel
+     */
+    WorldModel withUsers(NodeDictionary nodes, UserTable users) {
+        return new WorldModel(this.world, this.source, this.copies, this.base, nodes, users,
+                this.groups, this.groupsData, this.groupsInheritance, this.resolved, this.cache);
+    }
+
+    /**
+     * Replaces the nodes of one group, resolving again only the groups
+     * inheriting it.
+     *
+     * @param nodes - Dictionary the new set was interned into.
+     * @param group - Lowercased group name.
+     * @param permissions
+     * @return WorldModel
+     */
+    WorldModel withGroup(NodeDictionary nodes, String group, NodeSet permissions) {
+        SharedMap<NodeSet> groups = this.groups.with(group, permissions);
+        return new WorldModel(this.world, this.source, this.copies, this.base, nodes, this.users,
+                groups, this.groupsData, this.groupsInheritance, this.resolved.with(groups, group), this.cache);
+    }
+
+    /**
+     * Replaces the data of one group.
+     *
+     * @param group - Lowercased group name.
+     * @param data - {name, prefix, suffix, build}.
+     * @return WorldModel
+     */
+    WorldModel withGroupData(String group, Object[] data) {
+        return new WorldModel(this.world, this.source, this.copies, this.base, this.nodes, this.users,
+                this.groups, this.groupsData.with(group, data), this.groupsInheritance, this.resolved, this.cache);
+    }
+
+    WorldModel withCache(DecisionCache cache) {
+        return new WorldModel(this.world, this.source, this.copies, this.base, this.nodes, this.users,
+                this.groups, this.groupsData, this.groupsInheritance, this.resolved, cache);
+    }
+
+    String getWorld() {
+        return this.world;
+    }
+
+    PermissionStorage.Source getSource() {
+        return this.source;
+    }
+
+    /**
+     * Grabs the configuration of the world, reading it on first use.
+     *
+     * @return Configuration
+     */
+    Configuration getConfig() {
+        return this.source.get();
+    }
+
+    String getCopies() {
+        return this.copies;
+    }
+
+    String getBase() {
+        return this.base;
+    }
+
+    NodeDictionary getNodes() {
+        return this.nodes;
+    }
+
+    UserTable getUsers() {
+        return this.users;
+    }
+
+    Map<String, NodeSet> getGroups() {
+        return this.groups;
+    }
+
+    Map<String, Object[]> getGroupsData() {
+        return this.groupsData;
+    }
+
+    Map<String, Set<String>> getGroupsInheritance() {
+        return this.groupsInheritance;
+    }
+
+    GroupInheritance getResolved() {
+        return this.resolved;
+    }
+
+    DecisionCache getCache() {
+        return this.cache;
+    }
+}
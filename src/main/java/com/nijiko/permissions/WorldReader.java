@@ -0,0 +1,373 @@
+package com.nijiko.permissions;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.events.AliasEvent;
+import org.yaml.snakeyaml.events.DocumentEndEvent;
+import org.yaml.snakeyaml.events.DocumentStartEvent;
+import org.yaml.snakeyaml.events.Event;
+import org.yaml.snakeyaml.events.MappingEndEvent;
+import org.yaml.snakeyaml.events.MappingStartEvent;
+import org.yaml.snakeyaml.events.ScalarEvent;
+import org.yaml.snakeyaml.events.SequenceEndEvent;
+import org.yaml.snakeyaml.events.SequenceStartEvent;
+import org.yaml.snakeyaml.events.StreamEndEvent;
+import org.yaml.snakeyaml.events.StreamStartEvent;
+import org.yaml.snakeyaml.reader.UnicodeReader;
+
+/**
+ * Permissions 2.x
+ * Copyright (C) 2011  Matt 'The Yeti' Burnett <admin@theyeticave.net>
+ * Original Credit & Copyright (C) 2010 Nijikokun <nijikokun@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Permissions Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Permissions Public License for more details.
+ *
+ * You should have received a copy of the GNU Permissions Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Reads a world file straight from the YAML event stream.
+ * <br /><br />
+ * Groups and users are handed to a {@link WorldBuilder} as they are parsed,
+ * so no object tree is built and no dotted path is looked up. Anything the
+ * handler does not use is skipped. Scalars read the way the configuration
+ * would read them: plain null and boolean words become null and booleans,
+ * everything else is kept as written.
+ * <br /><br />
+ * Files using aliases or holding more than one document are refused with
+ * an IOException, the caller reads those through the configuration.
+ *
+ * @author TheYeti
+ */
+final class WorldReader {
+
+    private static final Set<String> NULL = new HashSet<String>(Arrays.asList("", "~", "null", "Null", "NULL"));
+    private static final Set<String> TRUE = new HashSet<String>(Arrays.asList("yes", "Yes", "YES", "true", "True", "TRUE", "on", "On", "ON"));
+    private static final Set<String> FALSE = new HashSet<String>(Arrays.asList("no", "No", "NO", "false", "False", "FALSE", "off", "Off", "OFF"));
+
+    private final Iterator<Event> events;
+
+    private String copies = null;
+    private final Map<String, Object> settings = new HashMap<String, Object>();
+
+    private WorldReader(Iterator<Event> events) {
+        this.events = events;
+    }
+
+    /**
+     * Reads a world file into a builder, leaving the stream open.
+     *
+     * @param stream
+     * @param builder
+     * @return WorldReader, holding the plugin settings found in the file.
+     * @throws IOException when the file cannot be read or has to be read through the configuration.
+     */
+    static WorldReader read(InputStream stream, WorldBuilder builder) throws IOException {
+        WorldReader reader = new WorldReader(new Yaml().parse(new UnicodeReader(stream)).iterator());
+        reader.stream(builder);
+        return reader;
+    }
+
+    /**
+     * Grabs plugin.permissions.copies.
+     *
+     * @return String, null if not set.
+     */
+    String getCopies() {
+        return this.copies;
+    }
+
+    /**
+     * Grabs the other settings under plugin.permissions, e.g. "cache.size".
+     *
+     * @return Map of the setting to its scalar value, see scalar().
+     */
+    Map<String, Object> getSettings() {
+        return this.settings;
+    }
+
+    private void stream(WorldBuilder builder) throws IOException {
+        if (!(this.next() instanceof StreamStartEvent)) {
+            throw new IOException("Expected the start of a stream.");
+        }
+
+        Event event = this.next();
+
+        if (event instanceof StreamEndEvent) {
+            return;
+        }
+
+        if (!(event instanceof DocumentStartEvent)) {
+            throw new IOException("Expected the start of a document.");
+        }
+
+        event = this.next();
+
+        if (event instanceof MappingStartEvent) {
+            this.root(builder);
+        } else {
+            this.skip(event);
+        }
+
+        if (!(this.next() instanceof DocumentEndEvent) || !(this.next() instanceof StreamEndEvent)) {
+            throw new IOException("Expected a single document.");
+        }
+    }
+
+    private void root(WorldBuilder builder) throws IOException {
+        for (String key = this.key(); key != null; key = this.key()) {
+            Event value = this.next();
+
+            if (key.equals("plugin") && value instanceof MappingStartEvent) {
+                this.plugin();
+            } else if (key.equals("groups") && value instanceof MappingStartEvent) {
+                this.groups(builder);
+            } else if (key.equals("users") && value instanceof MappingStartEvent) {
+                this.users(builder);
+            } else {
+                this.skip(value);
+            }
+        }
+    }
+
+    private void plugin() throws IOException {
+        for (String key = this.key(); key != null; key = this.key()) {
+            Event value = this.next();
+
+            if (key.equals("permissions") && value instanceof MappingStartEvent) {
+                this.settings("");
+            } else {
+                this.skip(value);
+            }
+        }
+    }
+
+    /**
+     * Reads plugin.permissions, flattening nested settings into dotted keys.
+     */
+    private void settings(String prefix) throws IOException {
+        for (String key = this.key(); key != null; key = this.key()) {
+            Event event = this.next();
+
+            if (event instanceof MappingStartEvent) {
+                this.settings(prefix + key + ".");
+            } else if (prefix.isEmpty() && key.equals("copies")) {
+                this.copies = this.string(event);
+            } else {
+                this.settings.put(prefix + key, this.scalar(event));
+            }
+        }
+    }
+
+    private void groups(WorldBuilder builder) throws IOException {
+        for (String key = this.key(); key != null; key = this.key()) {
+            Event value = this.next();
+
+            boolean Default = false;
+            boolean build = false;
+            String prefix = null;
+            String suffix = null;
+            List<String> inheritance = null;
+            List<String> permissions = null;
+
+            if (value instanceof MappingStartEvent) {
+                for (String field = this.key(); field != null; field = this.key()) {
+                    Event event = this.next();
+
+                    if (field.equals("default")) {
+                        Default = Boolean.TRUE.equals(this.scalar(event));
+                    } else if (field.equals("inheritance")) {
+                        inheritance = this.list(event);
+                    } else if (field.equals("permissions")) {
+                        permissions = this.list(event);
+                    } else if (field.equals("info") && event instanceof MappingStartEvent) {
+                        for (String info = this.key(); info != null; info = this.key()) {
+                            Event data = this.next();
+
+                            if (info.equals("prefix")) {
+                                prefix = this.string(data);
+                            } else if (info.equals("suffix")) {
+                                suffix = this.string(data);
+                            } else if (info.equals("build")) {
+                                build = Boolean.TRUE.equals(this.scalar(data));
+                            } else {
+                                this.skip(data);
+                            }
+                        }
+                    } else {
+                        this.skip(event);
+                    }
+                }
+            } else {
+                this.skip(value);
+            }
+
+            builder.group(key, Default, prefix, suffix, build, inheritance, permissions);
+        }
+    }
+
+    private void users(WorldBuilder builder) throws IOException {
+        for (String key = this.key(); key != null; key = this.key()) {
+            Event value = this.next();
+
+            String group = null;
+            List<String> permissions = null;
+
+            if (value instanceof MappingStartEvent) {
+                for (String field = this.key(); field != null; field = this.key()) {
+                    Event event = this.next();
+
+                    if (field.equals("group")) {
+                        group = this.string(event);
+                    } else if (field.equals("permissions")) {
+                        permissions = this.list(event);
+                    } else {
+                        this.skip(event);
+                    }
+                }
+            } else {
+                this.skip(value);
+            }
+
+            builder.user(key, group, permissions);
+        }
+    }
+
+    private Event next() throws IOException {
+        if (!this.events.hasNext()) {
+            throw new IOException("Unexpected end of stream.");
+        }
+
+        Event event = this.events.next();
+
+        if (event instanceof AliasEvent) {
+            throw new IOException("Aliases are not read from the event stream.");
+        }
+
+        return event;
+    }
+
+    /**
+     * Grabs the next key of the mapping being read.
+     *
+     * @return String, null at the end of the mapping.
+     * @throws IOException
+     */
+    private String key() throws IOException {
+        Event event = this.next();
+
+        if (event instanceof MappingEndEvent) {
+            return null;
+        }
+
+        if (!(event instanceof ScalarEvent)) {
+            throw new IOException("Only scalar keys are read from the event stream.");
+        }
+
+        return ((ScalarEvent) event).getValue();
+    }
+
+    /**
+     * Skips a value, along with everything nested in it.
+     */
+    private void skip(Event event) throws IOException {
+        if (!(event instanceof MappingStartEvent) && !(event instanceof SequenceStartEvent)) {
+            return;
+        }
+
+        int depth = 1;
+
+        while (depth > 0) {
+            Event nested = this.next();
+
+            if (nested instanceof MappingStartEvent || nested instanceof SequenceStartEvent) {
+                depth++;
+            } else if (nested instanceof MappingEndEvent || nested instanceof SequenceEndEvent) {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * Reads a scalar value, skipping anything else.
+     *
+     * @return Object, a String, a Boolean or null.
+     */
+    private Object scalar(Event event) throws IOException {
+        if (!(event instanceof ScalarEvent)) {
+            this.skip(event);
+            return null;
+        }
+
+        ScalarEvent scalar = (ScalarEvent) event;
+        String value = scalar.getValue();
+
+        // Quoted, block and tagged scalars are always strings.
+        if (scalar.getTag() != null || scalar.getStyle() != null) {
+            return value;
+        }
+
+        if (NULL.contains(value)) {
+            return null;
+        }
+
+        if (TRUE.contains(value)) {
+            return Boolean.TRUE;
+        }
+
+        if (FALSE.contains(value)) {
+            return Boolean.FALSE;
+        }
+
+        return value;
+    }
+
+    private String string(Event event) throws IOException {
+        Object value = this.scalar(event);
+        return (value == null) ? null : value.toString();
+    }
+
+    /**
+     * Reads a list of strings, leaving out nulls and nested lists or
+     * mappings. Anything but a list reads as an empty list.
+     */
+    private List<String> list(Event event) throws IOException {
+        List<String> list = new ArrayList<String>();
+
+        if (!(event instanceof SequenceStartEvent)) {
+            this.skip(event);
+            return list;
+        }
+
+        for (Event item = this.next(); !(item instanceof SequenceEndEvent); item = this.next()) {
+            String value = (item instanceof ScalarEvent) ? this.string(item) : null;
+
+            if (value != null) {
+                list.add(value);
+            } else {
+                this.skip(item);
+            }
+        }
+
+        return list;
+    }
+}
@@ -0,0 +1,463 @@
+package com.nijiko.permissions;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Permissions 2.x
+ * Copyright (C) 2011  Matt 'The Yeti' Burnett <admin@theyeticave.net>
+ * Original Credit & Copyright (C) 2010 Nijikokun <nijikokun@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Permissions Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Permissions Public License for more details.
+ *
+ * You should have received a copy of the GNU Permissions Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A world file as read, kept in a compact binary file next to it.
+ * <br /><br />
+ * The snapshot of world.yml is world.snapshot. It holds the node table in
+ * id order, the node ids of every group and user, the user groups, the
+ * group data and inheritance, and the plugin settings of the file. It is
+ * stamped with the size, modification time and CRC-32 of the file it was
+ * read from, and is only used while all three still match; otherwise the
+ * file is read again and a new snapshot written.
+ * <br /><br />
+ * Inheritance is resolved again from the restored groups, which costs
+ * little next to reading the file.
+ *
+ * @author TheYeti
+ */
+final class WorldSnapshot {
+
+    private static final Logger log = Logger.getLogger("Minecraft");
+
+    private static final int MAGIC = 0x504d534e;
+    private static final int VERSION = 2;
+    private static final int HEADER = 4 + 4 + 8 + 8 + 8;
+
+    private static final byte USER_NO_GROUP = 0;
+    private static final byte USER_DEFAULT_GROUP = 1;
+    private static final byte USER_GROUP = 2;
+
+    private static final byte SETTING_NULL = 0;
+    private static final byte SETTING_STRING = 1;
+    private static final byte SETTING_FALSE = 2;
+    private static final byte SETTING_TRUE = 3;
+
+    private final String copies;
+    private final Map<String, Object> settings;
+    private final WorldBuilder builder;
+
+    private WorldSnapshot(String copies, Map<String, Object> settings, WorldBuilder builder) {
+        this.copies = copies;
+        this.settings = settings;
+        this.builder = builder;
+    }
+
+    /**
+     * Grabs the snapshot file kept for a world file.
+     *
+     * @param source
+     * @return File
+     */
+    static File fileFor(File source) {
+        String name = source.getName();
+
+        if (name.toLowerCase().endsWith(".yml")) {
+            name = name.substring(0, name.length() - 4);
+        }
+
+        return new File(source.getParentFile(), name + ".snapshot");
+    }
+
+    /**
+     * Reads a world file, from its snapshot when that is current, otherwise
+     * from the YAML, writing a new snapshot.
+     *
+     * @param world - Lowercased world.
+     * @param source - World file.
+     * @return WorldSnapshot
+     * @throws IOException when the file cannot be read or has to be read through the configuration.
+     */
+    static WorldSnapshot read(String world, File source) throws IOException {
+        long modified = source.lastModified();
+        byte[] data = readFully(source);
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        long checksum = crc.getValue();
+
+        File file = fileFor(source);
+        WorldSnapshot snapshot = null;
+
+        if (file.isFile()) {
+            try {
+                snapshot = load(world, file, data.length, modified, checksum);
+            } catch (IOException e) {
+                log.fine("[Permissions] Could not read " + file.getName() + ": " + e.getMessage());
+            }
+        }
+
+        if (snapshot != null) {
+            return snapshot;
+        }
+
+        WorldBuilder builder = new WorldBuilder(world);
+        WorldReader reader = WorldReader.read(new ByteArrayInputStream(data), builder);
+        snapshot = new WorldSnapshot(reader.getCopies(), reader.getSettings(), builder);
+
+        try {
+            snapshot.write(file, data.length, modified, checksum);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "[Permissions] Could not write " + file.getName() + ".", e);
+        }
+
+        return snapshot;
+    }
+
+    String getCopies() {
+        return this.copies;
+    }
+
+    /**
+     * Grabs the settings under plugin.permissions, see {@link WorldReader#getSettings()}.
+     *
+     * @return Map
+     */
+    Map<String, Object> getSettings() {
+        return this.settings;
+    }
+
+    WorldBuilder getBuilder() {
+        return this.builder;
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        FileInputStream stream = new FileInputStream(file);
+
+        try {
+            long length = file.length();
+
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException(file.getName() + " is too large.");
+            }
+
+            byte[] data = new byte[(int) length];
+            int read = 0;
+
+            while (read < data.length) {
+                int count = stream.read(data, read, data.length - read);
+
+                if (count < 0) {
+                    break;
+                }
+
+                read += count;
+            }
+
+            if (read < data.length) {
+                byte[] shorter = new byte[read];
+                System.arraycopy(data, 0, shorter, 0, read);
+                return shorter;
+            }
+
+            return data;
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Restores a snapshot if its stamp matches. The stamp is read first, and
+     * only a current snapshot is read in full.
+     *
+     * @return WorldSnapshot, null if it is stale.
+     */
+    private static WorldSnapshot load(String world, File file, long size, long modified, long checksum) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+
+        try {
+            FileChannel channel = input.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) {
+                    break;
+                }
+            }
+
+            header.flip();
+
+            if (header.remaining() < HEADER || header.getInt() != MAGIC || header.getInt() != VERSION) {
+                return null;
+            }
+
+            if (header.getLong() != size || header.getLong() != modified || header.getLong() != checksum) {
+                return null;
+            }
+
+            // Read onto the heap rather than mapped, a mapping would keep the file locked on Windows until collected.
+            ByteBuffer buffer = ByteBuffer.allocate((int) (channel.size() - HEADER));
+
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new IOException("Snapshot is truncated.");
+                }
+            }
+
+            buffer.flip();
+
+            String copies = getString(buffer);
+            Map<String, Object> settings = new HashMap<String, Object>();
+            int count = buffer.getInt();
+
+            for (int i = 0; i < count; i++) {
+                String key = getString(buffer);
+                byte type = buffer.get();
+
+                if (type == SETTING_STRING) {
+                    settings.put(key, getString(buffer));
+                } else if (type == SETTING_NULL) {
+                    settings.put(key, null);
+                } else {
+                    settings.put(key, Boolean.valueOf(type == SETTING_TRUE));
+                }
+            }
+
+            WorldBuilder builder = new WorldBuilder(world);
+            builder.Base = getString(buffer);
+
+            int nodes = buffer.getInt();
+
+            for (int i = 0; i < nodes; i++) {
+                builder.Nodes.intern(getString(buffer));
+            }
+
+            int groups = buffer.getInt();
+
+            for (int i = 0; i < groups; i++) {
+                String name = getString(buffer);
+                builder.Groups.put(name, getSet(buffer));
+                builder.GroupsData.put(name, new Object[]{getString(buffer), getString(buffer), getString(buffer), buffer.get() != 0});
+
+                int inheritance = buffer.getInt();
+
+                if (inheritance > 0) {
+                    Set<String> Inheritance = new HashSet<String>();
+
+                    for (int j = 0; j < inheritance; j++) {
+                        Inheritance.add(getString(buffer));
+                    }
+
+                    builder.GroupsInheritance.put(name, Inheritance);
+                }
+            }
+
+            int users = buffer.getInt();
+
+            for (int i = 0; i < users; i++) {
+                String name = getString(buffer);
+                builder.UserPermissions.put(name, getSet(buffer));
+
+                byte group = buffer.get();
+
+                if (group == USER_GROUP) {
+                    builder.UserGroups.put(name, getString(buffer));
+                } else if (group == USER_DEFAULT_GROUP) {
+                    builder.Unassigned.add(name);
+                }
+            }
+
+            return new WorldSnapshot(copies, settings, builder);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Snapshot is truncated.");
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Snapshot is damaged.");
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Snapshot is damaged.");
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Writes the snapshot to a temporary file of its own and moves it over
+     * the old one in one step, so a reader never sees half of one and two
+     * loads of the same world never write into the same file.
+     */
+    private void write(File file, long size, long modified, long checksum) throws IOException {
+        File temp = File.createTempFile(file.getName() + ".", ".tmp", file.getParentFile());
+
+        try {
+            this.write(temp, size, modified, checksum, this.builder);
+
+            try {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            // Only left behind when it could not be written or moved.
+            temp.delete();
+        }
+    }
+
+    private void write(File temp, long size, long modified, long checksum, WorldBuilder builder) throws IOException {
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(size);
+            output.writeLong(modified);
+            output.writeLong(checksum);
+
+            putString(output, this.copies);
+            output.writeInt(this.settings.size());
+
+            for (Map.Entry<String, Object> setting : this.settings.entrySet()) {
+                Object value = setting.getValue();
+                putString(output, setting.getKey());
+
+                if (value == null) {
+                    output.writeByte(SETTING_NULL);
+                } else if (value instanceof Boolean) {
+                    output.writeByte(((Boolean) value) ? SETTING_TRUE : SETTING_FALSE);
+                } else {
+                    output.writeByte(SETTING_STRING);
+                    putString(output, value.toString());
+                }
+            }
+            putString(output, builder.Base);
+
+            output.writeInt(builder.Nodes.size());
+
+            for (int id = 0; id < builder.Nodes.size(); id++) {
+                putString(output, builder.Nodes.getNode(id));
+            }
+
+            output.writeInt(builder.Groups.size());
+
+            for (Map.Entry<String, NodeSet> group : builder.Groups.entrySet()) {
+                Object[] data = builder.GroupsData.get(group.getKey());
+                Set<String> Inheritance = builder.GroupsInheritance.get(group.getKey());
+
+                putString(output, group.getKey());
+                putSet(output, group.getValue());
+                putString(output, (String) data[0]);
+                putString(output, (String) data[1]);
+                putString(output, (String) data[2]);
+                output.writeByte(((Boolean) data[3]) ? 1 : 0);
+
+                if (Inheritance == null) {
+                    output.writeInt(0);
+                } else {
+                    output.writeInt(Inheritance.size());
+
+                    for (String parent : Inheritance) {
+                        putString(output, parent);
+                    }
+                }
+            }
+
+            output.writeInt(builder.UserPermissions.size());
+
+            for (Map.Entry<String, NodeSet> user : builder.UserPermissions.entrySet()) {
+                String group = builder.UserGroups.get(user.getKey());
+
+                putString(output, user.getKey());
+                putSet(output, user.getValue());
+
+                if (group != null) {
+                    output.writeByte(USER_GROUP);
+                    putString(output, group);
+                } else {
+                    output.writeByte(builder.Unassigned.contains(user.getKey()) ? USER_DEFAULT_GROUP : USER_NO_GROUP);
+                }
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    private static void putString(DataOutputStream output, String value) throws IOException {
+        if (value == null) {
+            output.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = value.getBytes("UTF-8");
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+
+        if (length < 0) {
+            return null;
+        }
+
+        if (length > buffer.remaining()) {
+            throw new IOException("Snapshot is truncated.");
+        }
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static void putSet(DataOutputStream output, NodeSet set) throws IOException {
+        BitSet bits = set.toBitSet();
+        output.writeInt(bits.cardinality());
+
+        for (int id = bits.nextSetBit(0); id >= 0; id = bits.nextSetBit(id + 1)) {
+            output.writeInt(id);
+        }
+    }
+
+    private static NodeSet getSet(ByteBuffer buffer) throws IOException {
+        int count = buffer.getInt();
+
+        if (count < 0 || count > buffer.remaining() / 4) {
+            throw new IOException("Snapshot is truncated.");
+        }
+        BitSet bits = new BitSet();
+
+        for (int i = 0; i < count; i++) {
+            bits.set(buffer.getInt());
+        }
+
+        return NodeSet.of(bits);
+    }
+}
@@ -0,0 +1,268 @@
+package com.nijiko.permissions;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Permissions 2.x
+ * Copyright (C) 2011  Matt 'The Yeti' Burnett <admin@theyeticave.net>
+ * Original Credit & Copyright (C) 2010 Nijikokun <nijikokun@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Permissions Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Permissions Public License for more details.
+ *
+ * You should have received a copy of the GNU Permissions Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Reloads world files that were edited outside of the server.
+ * <br /><br />
+ * A thread watches the data folder. Writes to a world file are collected
+ * until the file has been quiet for the delay, so an editor saving in
+ * several steps causes one reload. The file's content is then hashed and
+ * compared to the last content the handler read or wrote, which skips
+ * saves that changed nothing and the handler's own saves. Only the edited
+ * world is reloaded, on the watcher's thread.
+ *
+ * @author TheYeti
+ */
+final class WorldWatcher implements Runnable {
+
+    private static final Logger log = Logger.getLogger("Minecraft");
+
+    private final Control control;
+    private final YamlStorage storage;
+    private final File folder;
+    private final Map<String, byte[]> Known = new ConcurrentHashMap<String, byte[]>();
+    private final Map<String, Long> Changed = new HashMap<String, Long>();
+    private WatchService service = null;
+    private Thread thread = null;
+
+    private volatile long delay = 2000L;
+
+    WorldWatcher(Control control, YamlStorage storage) {
+        this.control = control;
+        this.storage = storage;
+        this.folder = storage.getFolder();
+    }
+
+    /**
+     * Sets how long a file has to be quiet before it is reloaded.
+     *
+     * @param delay - Milliseconds.
+     */
+    void setDelay(long delay) {
+        this.delay = Math.max(0L, delay);
+    }
+
+    /**
+     * Starts watching, if not already. The current content of every world
+     * file counts as read.
+     */
+    synchronized void start() {
+        if (this.thread != null) {
+            return;
+        }
+
+        try {
+            this.service = FileSystems.getDefault().newWatchService();
+            this.folder.toPath().register(this.service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            log.warning("[Permissions] Could not watch " + this.folder + " for edits: " + e.getMessage());
+            this.close();
+            return;
+        }
+
+        File[] files = this.folder.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                String world = worldOf(file.getName());
+
+                if (world != null) {
+                    this.remember(world, file);
+                }
+            }
+        }
+
+        this.thread = new Thread(this, "Permissions watcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Stops watching. Edits made meanwhile are not picked up later.
+     */
+    synchronized void stop() {
+        if (this.thread != null) {
+            this.thread.interrupt();
+            this.thread = null;
+        }
+
+        this.close();
+    }
+
+    /**
+     * Records the content of a world file as written by the handler, so a
+     * change event for it is ignored.
+     *
+     * @param world - Lowercased world.
+     */
+    void seen(String world) {
+        this.remember(world, this.storage.getWorldFile(world));
+    }
+
+    private void remember(String world, File file) {
+        byte[] digest = digest(file);
+
+        if (digest != null) {
+            this.Known.put(world, digest);
+        }
+    }
+
+    public void run() {
+        WatchService service;
+
+        synchronized (this) {
+            service = this.service;
+        }
+
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = this.Changed.isEmpty() ? service.take() : service.poll(this.due(), TimeUnit.MILLISECONDS);
+
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        Object context = event.context();
+                        String world = (context instanceof Path) ? worldOf(((Path) context).getFileName().toString()) : null;
+
+                        if (world != null) {
+                            this.Changed.put(world, System.currentTimeMillis());
+                        }
+                    }
+
+                    if (!key.reset()) {
+                        log.warning("[Permissions] " + this.folder + " can no longer be watched for edits.");
+                        return;
+                    }
+                }
+
+                this.reloadQuiet();
+            }
+        } catch (InterruptedException e) {
+            // Stopped.
+        } catch (ClosedWatchServiceException e) {
+            // Stopped.
+        }
+    }
+
+    /**
+     * Grabs how long until the next collected file has been quiet for the delay.
+     */
+    private long due() {
+        long first = Long.MAX_VALUE;
+
+        for (long last : this.Changed.values()) {
+            first = Math.min(first, last);
+        }
+
+        return Math.max(0L, first + this.delay - System.currentTimeMillis());
+    }
+
+    private void reloadQuiet() {
+        long now = System.currentTimeMillis();
+        List<String> worlds = new ArrayList<String>();
+
+        for (Iterator<Map.Entry<String, Long>> it = this.Changed.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Long> entry = it.next();
+
+            if (entry.getValue() + this.delay <= now) {
+                worlds.add(entry.getKey());
+                it.remove();
+            }
+        }
+
+        for (String world : worlds) {
+            File file = this.storage.getWorldFile(world);
+            byte[] digest = digest(file);
+
+            if (digest == null || Arrays.equals(digest, this.Known.get(world))) {
+                continue;
+            }
+
+            this.Known.put(world, digest);
+            long start = System.nanoTime();
+
+            // Worlds that are not loaded read the file once they are.
+            try {
+                if (this.control.reload(world)) {
+                    log.info("[Permissions] " + file.getName() + " was edited, reloaded " + world + " in " + ((System.nanoTime() - start) / 1000000L) + " ms.");
+                }
+            } catch (RuntimeException e) {
+                log.log(Level.SEVERE, "[Permissions] Could not reload edited world " + world + ".", e);
+            }
+        }
+    }
+
+    private void close() {
+        if (this.service != null) {
+            try {
+                this.service.close();
+            } catch (IOException e) {
+            }
+
+            this.service = null;
+        }
+    }
+
+    /**
+     * Grabs the lowercased world of a world file name.
+     *
+     * @return String, null if the name is not a world file's.
+     */
+    private static String worldOf(String name) {
+        if (!name.toLowerCase().endsWith(".yml") || name.equalsIgnoreCase("config.yml")) {
+            return null;
+        }
+
+        return name.substring(0, name.length() - 4).toLowerCase();
+    }
+
+    private static byte[] digest(File file) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(Files.readAllBytes(file.toPath()));
+        } catch (IOException e) {
+            return null;
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.nijiko.permissions;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bukkit.util.config.Configuration;
+
+import com.nijiko.configuration.NotNullConfiguration;
+import com.nijikokun.bukkit.Permissions.FileManager;
+
+/**
+ * Permissions 2.x
+ * Copyright (C) 2011  Matt 'The Yeti' Burnett <admin@theyeticave.net>
+ * Original Credit & Copyright (C) 2010 Nijikokun <nijikokun@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Permissions Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Permissions Public License for more details.
+ *
+ * You should have received a copy of the GNU Permissions Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Keeps each world in &lt;world&gt;.yml in the data folder, the default
+ * storage.
+ * <br /><br />
+ * A world is restored from its snapshot when that is current, or read from
+ * the YAML event stream, and its configuration is only loaded once
+ * something asks for it. Edits are appended to the world's journal and the
+ * file is only rewritten once the journal grows past its limit, or when the
+ * handler saves the world.
+ *
+ * @author TheYeti
+ */
+final class YamlStorage extends PermissionStorage {
+
+    private final File folder;
+    private final Map<String, Journal> Journals = new ConcurrentHashMap<String, Journal>();
+    private volatile long journalSize = 256 * 1024L;
+    private volatile boolean journalSync = false;
+
+    YamlStorage(File folder) {
+        this.folder = folder;
+    }
+
+    File getFolder() {
+        return this.folder;
+    }
+
+    /**
+     * Grabs the file of a world. World names are not case sensitive, so an
+     * existing file is matched regardless of case.
+     *
+     * @param world
+     * @return File
+     */
+    File getWorldFile(String world) {
+        File file = new File(this.folder.getPath() + File.separator + world + ".yml");
+
+        if (!file.exists()) {
+            File[] files = this.folder.listFiles();
+
+            if (files != null) {
+                for (File candidate : files) {
+                    if (candidate.getName().equalsIgnoreCase(world + ".yml")) {
+                        return candidate;
+                    }
+                }
+            }
+        }
+
+        return file;
+    }
+
+    public boolean exists(String world) {
+        return this.getWorldFile(world).exists();
+    }
+
+    public List<String> getWorlds() {
+        List<String> worlds = new ArrayList<String>();
+        File[] files = this.folder.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+
+                if (file.isFile() && name.toLowerCase().endsWith(".yml") && !name.equalsIgnoreCase("config.yml")) {
+                    worlds.add(name.substring(0, name.length() - 4));
+                }
+            }
+        }
+
+        return worlds;
+    }
+
+    /**
+     * Reads a world. Files the stream reader refuses, and files with edits
+     * waiting in their journal, are read through the configuration.
+     */
+    public Source read(String world, Entries entries) throws IOException {
+        this.createWorldFile(world);
+
+        File file = this.getWorldFile(world);
+        Configuration config = new NotNullConfiguration(file);
+
+        if (Journal.exists(file) || !(entries instanceof WorldBuilder)) {
+            return this.load(world, config, entries);
+        }
+
+        WorldSnapshot snapshot;
+
+        try {
+            snapshot = WorldSnapshot.read(world, file);
+        } catch (IOException e) {
+            log.fine("[Permissions] Reading " + world + " through the configuration: " + e.getMessage());
+            return this.load(world, config, entries);
+        }
+
+        ((WorldBuilder) entries).restore(snapshot.getBuilder());
+
+        for (Map.Entry<String, Object> setting : snapshot.getSettings().entrySet()) {
+            entries.setting(setting.getKey(), setting.getValue());
+        }
+
+        entries.setting("copies", snapshot.getCopies());
+        return new Source(config, false);
+    }
+
+    /**
+     * Reads a world through a configuration, loading it in full. Edits
+     * waiting in the world's journal are replayed onto it.
+     *
+     * @param world - Lowercased world.
+     * @param config
+     * @param entries
+     * @return Source
+     */
+    Source load(String world, Configuration config, Entries entries) {
+        this.createWorldFile(world);
+
+        config.load();
+
+        int replayed = Journal.replay(this.getWorldFile(world), config);
+
+        if (replayed > 0) {
+            log.info("[Permissions] Replayed " + replayed + " journaled edits of " + world + ".");
+        }
+
+        read(config, entries);
+        return new Source(config, true);
+    }
+
+    public boolean hasPending(String world) {
+        return Journal.exists(this.getWorldFile(world));
+    }
+
+    public Configuration fetch(String world) {
+        File file = this.getWorldFile(world);
+        Configuration config = new NotNullConfiguration(file);
+
+        config.load();
+        Journal.replay(file, config);
+        return config;
+    }
+
+    public boolean record(String world, byte type, String name, String node, Object value) throws IOException {
+        if (this.journalSize <= 0) {
+            return true;
+        }
+
+        Journal journal = this.Journals.get(world);
+
+        if (journal == null) {
+            journal = new Journal(this.getWorldFile(world));
+            this.Journals.put(world, journal);
+        }
+
+        journal.append(type, name, node, value, this.journalSync);
+        return journal.size() > this.journalSize;
+    }
+
+    /**
+     * Starts saving a world. Edits from here on go to a new journal, the
+     * rotated one is dropped once the file holds it. The configuration is
+     * copied here and written by the returned save.
+     */
+    public Save save(String world, Configuration config) throws IOException {
+        final Journal journal = this.Journals.get(world);
+
+        if (journal != null) {
+            journal.rotate();
+        }
+
+        if (!(config instanceof NotNullConfiguration)) {
+            if (!config.save()) {
+                throw new IOException("Could not write " + this.getWorldFile(world).getName() + ".");
+            }
+
+            if (journal != null) {
+                journal.commit();
+            }
+
+            return null;
+        }
+
+        final NotNullConfiguration file = (NotNullConfiguration) config;
+        final NotNullConfiguration.Snapshot snapshot = file.snapshot();
+
+        return new Save() {
+            public boolean write() {
+                if (!file.save(snapshot)) {
+                    return false;
+                }
+
+                if (journal != null) {
+                    journal.commit();
+                }
+
+                return true;
+            }
+        };
+    }
+
+    public void configure(Map<String, Object> settings) {
+        Object journal = settings.get("journal.size");
+
+        if (journal instanceof Number) {
+            this.journalSize = ((Number) journal).longValue() * 1024L;
+        } else if (journal instanceof String) {
+            try {
+                this.journalSize = Long.parseLong((String) journal) * 1024L;
+            } catch (NumberFormatException e) {
+            }
+        }
+
+        this.journalSync = Boolean.TRUE.equals(settings.get("journal.sync"));
+    }
+
+    @SuppressWarnings("unused")
+    private void createWorldFile(String world) {
+        if (!this.getWorldFile(world).exists()) {
+            FileManager file = new FileManager(this.folder.getPath() + File.separator, world + ".yml", true);
+        }
+    }
+}
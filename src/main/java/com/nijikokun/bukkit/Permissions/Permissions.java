@@ -5,10 +5,13 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Logger;
 
 import org.bukkit.ChatColor;
 import org.bukkit.Server;
+import org.bukkit.World;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
@@ -26,6 +29,7 @@ import com.nijiko.configuration.DefaultConfiguration;
 import com.nijiko.configuration.NotNullConfiguration;
 import com.nijiko.permissions.Control;
 import com.nijiko.permissions.PermissionHandler;
+import com.nijiko.permissions.PermissionStorage;
 
 /**
  * Permissions 2.x
@@ -57,9 +61,17 @@ public class Permissions extends JavaPlugin {
     public static String name = "Permissions";
     public static String version = "2.7.4";
     public static String codename = "Phoenix";
+
+    /**
+     * Longest time, in milliseconds, that disabling waits for unsaved edits to be written.
+     */
+    private static final long SAVE_TIMEOUT = 30000L;
     
     
     public Listener l = new Listener(this);
+    public SubjectListener s = new SubjectListener(this);
+    public WorldLoader w = new WorldLoader(this);
+    public Reloader reloader = new Reloader(this);
 
     /**
      * Controller for permissions and security.
@@ -147,8 +159,11 @@ public class Permissions extends JavaPlugin {
 
     public void onDisable() {
     	//Addition by rcjrrjcr
-    	Security.saveAll();
-    	log.info("[Permissions] (" + codename + ") saved all data.");
+    	if (Security.shutdown(SAVE_TIMEOUT)) {
+    		log.info("[Permissions] (" + codename + ") saved all data.");
+    	} else {
+    		log.severe("[Permissions] (" + codename + ") could not save all data.");
+    	}
     	//End of addition by rcjrrjcr
     	
     	log.info("[Permissions] (" + codename + ") disabled successfully.");
@@ -169,7 +184,11 @@ public class Permissions extends JavaPlugin {
     }
 
     public void setupPermissions() {
-        Security = new Control(new NotNullConfiguration(new File("plugins" + File.separator + "Permissions", DefaultWorld + ".yml")));
+        // plugin.permissions.system of the default world's file picks where worlds are kept.
+        this.config.load();
+        PermissionStorage storage = PermissionStorage.create(this.config.permissionSystem, getDataFolder());
+
+        Security = new Control(storage);
         Security.setDefaultWorld(DefaultWorld);
         Security.load();
     }
@@ -205,6 +224,25 @@ public class Permissions extends JavaPlugin {
         
         this.getServer().getPluginManager().registerEvent(Event.Type.BLOCK_PLACE, l, Priority.High, this);
         this.getServer().getPluginManager().registerEvent(Event.Type.BLOCK_BREAK, l, Priority.High, this);
+        this.getServer().getPluginManager().registerEvent(Event.Type.PLAYER_JOIN, s, Priority.Monitor, this);
+        this.getServer().getPluginManager().registerEvent(Event.Type.PLAYER_QUIT, s, Priority.Monitor, this);
+        this.getServer().getPluginManager().registerEvent(Event.Type.PLAYER_TELEPORT, s, Priority.Monitor, this);
+        this.getServer().getPluginManager().registerEvent(Event.Type.PLAYER_RESPAWN, s, Priority.Monitor, this);
+        this.getServer().getPluginManager().registerEvent(Event.Type.WORLD_LOAD, w, Priority.Monitor, this);
+
+        // Worlds that are already up, and every world file if preload is on, load in the background.
+        final List<String> worlds = new ArrayList<String>();
+
+        for (World world : this.getServer().getWorlds()) {
+            worlds.add(world.getName());
+        }
+
+        this.getServer().getScheduler().scheduleAsyncDelayedTask(this, new Runnable() {
+            public void run() {
+                Security.loadWorlds(worlds);
+                Security.preload();
+            }
+        });
     }
     
     public boolean onCommand(CommandSender sender, Command command, String commandLabel, String[] args) {
@@ -227,6 +265,7 @@ public class Permissions extends JavaPlugin {
         			if (Security.has(player, "permissions.reload")) {
         				Messaging.send("&7Reload with: &f/permissions -reload [World]");
         				Messaging.send("&fLeave [World] blank to reload default world.");
+        				Messaging.send("&7Reload one entry with: &f/permissions -reload <World> user|group <Name>");
         			}
 
         			Messaging.send("&7-------[ &fPermissions&7 ]-------");
@@ -240,54 +279,58 @@ public class Permissions extends JavaPlugin {
         	if (args.length >= 1) {
         		if (args[0].compareToIgnoreCase("-reload") == 0) {
         			if (args.length == 2) {
-        				if (args[1].compareToIgnoreCase("all") == 0) {
-        					if (player != null) {
-        						if (Security.has(player, "permissions.reload")) {
-        							Security.reload();
-        							player.sendMessage(ChatColor.GRAY + "[Permissions] World Reloads completed.");
-        							return true;
-        						}
-        						else {
-        							player.sendMessage(ChatColor.RED + "[Permissions] You lack the necessary permissions to perform this action.");
-        							return true;
-        						}
-        					}
-        					else {
-        						Security.reload();
-        						sender.sendMessage("All world files reloaded.");
-        						return true;
-        					}
+        				if (player != null && !Security.has(player, "permissions.reload")) {
+        					player.sendMessage(ChatColor.RED + "[Permissions] You lack the necessary permissions to perform this action.");
+        					return true;
+        				}
+
+        				// Parsing big world files takes a while, so it happens off the main thread.
+        				String world = (args[1].compareToIgnoreCase("all") == 0) ? null : args[1];
+        				this.reloader.reload(world, sender);
+
+        				if (player != null) {
+        					player.sendMessage(ChatColor.GRAY + "[Permissions] Reloading " + ((world == null) ? "all worlds" : world) + "...");
         				}
         				else {
-        					if (player != null) {
-        						if (Security.has(player, "permissions.reload")) {
-        							String world = args[1];
-        							if (Security.reload(world)) {
-        								player.sendMessage(ChatColor.GRAY + "[Permissions] " + args[1] + " World Reload completed.");
-        							}
-        							else {
-        								Messaging.send("&7[Permissions] " + world + " does not exist.");
-        							}
-        							return true;
-        						}
-        						else {
-        							player.sendMessage(ChatColor.RED + "[Permissions] You lack the necessary permissions to permform this action.");
-        							return true;
-        						}
-        					}
-        					else {
-        						String world = args[1];
-        						if (Security.reload(world)) {
-        							sender.sendMessage("[Permissions] Reload of World " + world + " completed.");
-        						}
-        						else {
-        							sender.sendMessage("[Permissions] World " + world + " does not exist.");
-        						}
-        						return true;
-        					}
+        					sender.sendMessage("[Permissions] Reloading " + ((world == null) ? "all worlds" : world) + "...");
+        				}
+        				return true;
+        			}
+        			else if (args.length == 4 && (args[2].equalsIgnoreCase("user") || args[2].equalsIgnoreCase("group"))) {
+        				if (player != null && !Security.has(player, "permissions.reload")) {
+        					player.sendMessage(ChatColor.RED + "[Permissions] You lack the necessary permissions to perform this action.");
+        					return true;
+        				}
+
+        				// Only the decisions the entry can change are dropped.
+        				String type = args[2].toLowerCase();
+        				this.reloader.reload(args[1], type, args[3], sender);
+
+        				if (player != null) {
+        					player.sendMessage(ChatColor.GRAY + "[Permissions] Reloading " + type + " " + args[3] + " of " + args[1] + "...");
+        				}
+        				else {
+        					sender.sendMessage("[Permissions] Reloading " + type + " " + args[3] + " of " + args[1] + "...");
         				}
+        				return true;
         			}
         		}
+        		else if (args[0].compareToIgnoreCase("-cache") == 0) {
+        			String world = (args.length >= 2) ? args[1] : DefaultWorld;
+
+        			if (player != null && !Security.has(player, "permissions.reload")) {
+        				player.sendMessage(ChatColor.RED + "[Permissions] You lack the necessary permissions to perform this action.");
+        				return true;
+        			}
+
+        			if (Security.checkWorld(world)) {
+        				sender.sendMessage("[Permissions] Cache of " + world + ": " + Security.getCacheStatistics(world));
+        			}
+        			else {
+        				sender.sendMessage("[Permissions] World " + world + " is not loaded.");
+        			}
+        			return true;
+        		}
         	}
         }
         return false;
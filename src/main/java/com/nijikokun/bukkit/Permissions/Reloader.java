@@ -0,0 +1,203 @@
+package com.nijikokun.bukkit.Permissions;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+import org.bukkit.ChatColor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+/**
+ * Permissions 2.x
+ * Copyright (C) 2011  Matt 'The Yeti' Burnett <admin@theyeticave.net>
+ * Original Credit & Copyright (C) 2010 Nijikokun <nijikokun@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Permissions Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Permissions Public License for more details.
+ *
+ * You should have received a copy of the GNU Permissions Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Runs /permissions -reload off the main thread.
+ * <br /><br />
+ * Worlds are read and compiled on an async task and swapped in by the
+ * handler once complete, so the server keeps ticking on the old data in the
+ * meantime. Requests for a world that is still waiting to start are folded
+ * into the waiting one. A single user or group can be reloaded on its
+ * own, which keeps the cached decisions of everyone else. Everyone who
+ * asked is told, on the main thread, how long it took.
+ *
+ * @author TheYeti
+ */
+public class Reloader {
+
+    /**
+     * Key of a reload of every world.
+     */
+    private static final String ALL = "*";
+
+    private final Permissions plugin;
+    private final Map<String, Request> Waiting = new HashMap<String, Request>();
+
+    public Reloader(final Permissions plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Queues a reload.
+     *
+     * @param world - World to reload, null for every loaded world.
+     * @param sender - Told once the reload is done, may be null.
+     * @return boolean. True if a new reload was started, false if it joined one still waiting.
+     */
+    public boolean reload(String world, CommandSender sender) {
+        return this.queue((world == null) ? ALL : world, world, null, null, sender);
+    }
+
+    /**
+     * Queues a reload of one user or group of a world.
+     *
+     * @param world
+     * @param type - "user" or "group".
+     * @param name
+     * @param sender - Told once the reload is done, may be null.
+     * @return boolean. True if a new reload was started, false if it joined one still waiting.
+     */
+    public boolean reload(String world, String type, String name, CommandSender sender) {
+        return this.queue(world + ":" + type + ":" + name.toLowerCase(), world, type, name, sender);
+    }
+
+    private boolean queue(String key, String world, String type, String name, CommandSender sender) {
+        Request request;
+
+        synchronized (this.Waiting) {
+            request = this.Waiting.get(key);
+
+            if (request != null) {
+                request.add(sender);
+                return false;
+            }
+
+            request = new Request(key, world, type, name);
+            request.add(sender);
+            this.Waiting.put(key, request);
+        }
+
+        this.plugin.getServer().getScheduler().scheduleAsyncDelayedTask(this.plugin, request);
+        return true;
+    }
+
+    private final class Request implements Runnable {
+        private final String key;
+        private final String world;
+        private final String type;
+        private final String name;
+        private final List<CommandSender> senders = new ArrayList<CommandSender>();
+
+        private Request(String key, String world, String type, String name) {
+            this.key = key;
+            this.world = world;
+            this.type = type;
+            this.name = name;
+        }
+
+        private void add(CommandSender sender) {
+            if (sender != null) {
+                this.senders.add(sender);
+            }
+        }
+
+        public void run() {
+            // Later requests must start a new reload, this one may already have read the files.
+            synchronized (Waiting) {
+                Waiting.remove(this.key);
+            }
+
+            long start = System.nanoTime();
+            boolean found = true;
+            String error = null;
+
+            try {
+                if (this.world == null) {
+                    Permissions.Security.reload();
+                } else if (this.type == null) {
+                    found = Permissions.Security.reload(this.world);
+                } else if (this.type.equals("user")) {
+                    found = Permissions.Security.reloadUser(this.world, this.name);
+                } else {
+                    found = Permissions.Security.reloadGroup(this.world, this.name);
+                }
+            } catch (RuntimeException e) {
+                // The old data stays live, everyone waiting still has to hear back.
+                error = (e.getMessage() != null) ? e.getMessage() : e.getClass().getSimpleName();
+                Permissions.log.log(Level.SEVERE, "[Permissions] Reload of " + this.describe() + " failed", e);
+            }
+
+            final long elapsed = (System.nanoTime() - start) / 1000000L;
+            final boolean exists = found;
+            final String failure = error;
+
+            if (exists && failure == null) {
+                Permissions.log.info("[Permissions] Reloaded " + this.describe() + " in " + elapsed + " ms.");
+            }
+
+            plugin.getServer().getScheduler().scheduleSyncDelayedTask(plugin, new Runnable() {
+                public void run() {
+                    for (CommandSender sender : senders) {
+                        report(sender, exists, failure, elapsed);
+                    }
+                }
+            });
+        }
+
+        private void report(CommandSender sender, boolean exists, String failure, long elapsed) {
+            if (failure != null) {
+                sender.sendMessage(((sender instanceof Player) ? ChatColor.RED.toString() : "") + "[Permissions] Reload of "
+                        + this.describe() + " failed: " + failure + ". Kept the data loaded before.");
+                return;
+            }
+
+            if (sender instanceof Player) {
+                if (!exists) {
+                    sender.sendMessage(ChatColor.GRAY + "[Permissions] " + this.world + " does not exist.");
+                } else if (this.world == null) {
+                    sender.sendMessage(ChatColor.GRAY + "[Permissions] World Reloads completed in " + elapsed + " ms.");
+                } else if (this.type != null) {
+                    sender.sendMessage(ChatColor.GRAY + "[Permissions] Reload of " + this.describe() + " completed in " + elapsed + " ms.");
+                } else {
+                    sender.sendMessage(ChatColor.GRAY + "[Permissions] " + this.world + " World Reload completed in " + elapsed + " ms.");
+                }
+            } else {
+                if (!exists) {
+                    sender.sendMessage("[Permissions] World " + this.world + " does not exist.");
+                } else if (this.world == null) {
+                    sender.sendMessage("All world files reloaded in " + elapsed + " ms.");
+                } else if (this.type != null) {
+                    sender.sendMessage("[Permissions] Reload of " + this.describe() + " completed in " + elapsed + " ms.");
+                } else {
+                    sender.sendMessage("[Permissions] Reload of World " + this.world + " completed in " + elapsed + " ms.");
+                }
+            }
+        }
+
+        private String describe() {
+            if (this.world == null) {
+                return "all worlds";
+            }
+
+            return (this.type == null) ? this.world : this.type + " " + this.name + " of " + this.world;
+        }
+    }
+}
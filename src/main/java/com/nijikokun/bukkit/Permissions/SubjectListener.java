@@ -0,0 +1,97 @@
+package com.nijikokun.bukkit.Permissions;
+
+import org.bukkit.Location;
+import org.bukkit.entity.Player;
+import org.bukkit.event.player.PlayerEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerListener;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.player.PlayerRespawnEvent;
+import org.bukkit.event.player.PlayerTeleportEvent;
+import com.nijikokun.bukkit.Permissions.Permissions;
+
+/**
+ * Permissions 2.x
+ * Copyright (C) 2011  Matt 'The Yeti' Burnett <admin@theyeticave.net>
+ * Original Credit & Copyright (C) 2010 Nijikokun <nijikokun@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Permissions Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Permissions Public License for more details.
+ *
+ * You should have received a copy of the GNU Permissions Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Keeps a resolved subject for every online player, so checks by Player
+ * start from it instead of from the player's name and world.
+ * <br /><br />
+ * Subjects are resolved off the main thread, as that may load a world or
+ * read the player from a database. A check that comes first resolves the
+ * player itself.
+ *
+ * @author TheYeti
+ */
+public class SubjectListener extends PlayerListener {
+	private final Permissions plugin;
+	
+	public SubjectListener(final Permissions plugin) {
+		this.plugin = plugin;
+	}
+
+	@Override
+	public void onPlayerJoin(PlayerJoinEvent event) {
+		this.update(event.getPlayer(), event.getPlayer().getWorld().getName());
+	}
+	
+	@Override
+	public void onPlayerQuit(PlayerQuitEvent event) {
+		Permissions.Security.removeSubject(event.getPlayer());
+	}
+	
+	@Override
+	public void onPlayerTeleport(PlayerTeleportEvent event) {
+		if (event.isCancelled()) {
+			return;
+		}
+
+		this.moved(event, event.getFrom(), event.getTo());
+	}
+	
+	@Override
+	public void onPlayerRespawn(PlayerRespawnEvent event) {
+		this.moved(event, event.getPlayer().getLocation(), event.getRespawnLocation());
+	}
+
+	private void moved(PlayerEvent event, Location from, Location to) {
+		if (to == null || to.getWorld() == null) {
+			return;
+		}
+
+		if (from != null && from.getWorld() == to.getWorld()) {
+			return;
+		}
+
+		this.update(event.getPlayer(), to.getWorld().getName());
+	}
+
+	private void update(final Player player, final String world) {
+		this.plugin.getServer().getScheduler().scheduleAsyncDelayedTask(this.plugin, new Runnable() {
+			public void run() {
+				Permissions.Security.updateSubject(player, world);
+
+				// A player who left meanwhile is not kept.
+				if (!player.isOnline()) {
+					Permissions.Security.removeSubject(player);
+				}
+			}
+		});
+	}
+}
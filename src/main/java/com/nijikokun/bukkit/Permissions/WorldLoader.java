@@ -0,0 +1,51 @@
+package com.nijikokun.bukkit.Permissions;
+
+import java.util.Collections;
+
+import org.bukkit.event.world.WorldListener;
+import org.bukkit.event.world.WorldLoadEvent;
+import com.nijikokun.bukkit.Permissions.Permissions;
+
+/**
+ * Permissions 2.x
+ * Copyright (C) 2011  Matt 'The Yeti' Burnett <admin@theyeticave.net>
+ * Original Credit & Copyright (C) 2010 Nijikokun <nijikokun@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Permissions Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Permissions Public License for more details.
+ *
+ * You should have received a copy of the GNU Permissions Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Loads the permissions of a world in the background as soon as the server
+ * loads the world, so the first player in it does not wait for the file.
+ *
+ * @author TheYeti
+ */
+public class WorldLoader extends WorldListener {
+	private final Permissions plugin;
+	
+	public WorldLoader(final Permissions plugin) {
+		this.plugin = plugin;
+	}
+
+	@Override
+	public void onWorldLoad(WorldLoadEvent event) {
+		final String world = event.getWorld().getName();
+
+		this.plugin.getServer().getScheduler().scheduleAsyncDelayedTask(this.plugin, new Runnable() {
+			public void run() {
+				Permissions.Security.loadWorlds(Collections.singletonList(world));
+			}
+		});
+	}
+}